@@ -0,0 +1,161 @@
+package hr.hrg.javawatcher;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Publisher of change batches from a {@link FolderWatcher}, with demand based backpressure.
+ * <p>
+ * {@link Subscriber} and {@link Demand} follow the contract of {@code java.util.concurrent.Flow.Subscriber} and
+ * {@code Flow.Subscription} (Java 9+), but do not depend on them, so the library still runs on Java 8.
+ * On Java 9+ a {@code Flow.Subscriber} is connected with a thin adapter that forwards the four methods.
+ * </p>
+ * <p>
+ * A batch is assembled only when the subscriber has requested one. While demand is zero, changes are coalesced
+ * per path (see {@link ChangeCoalescer}), so a slow subscriber gets the net effect of what happened meanwhile,
+ * and memory does not grow with the number of events. Changes for subscribed matchers do not go to
+ * {@link FileMatchGlob} queues.
+ * </p>
+ * */
+public class BatchPublisher<T> {
+
+	/** Same contract as {@code java.util.concurrent.Flow.Subscriber}, with batches of changes as items */
+	public interface Subscriber<T> {
+		void onSubscribe(Demand demand);
+
+		void onNext(List<FileChangeEntry<T>> batch);
+
+		void onError(Throwable throwable);
+
+		void onComplete();
+	}
+
+	/** Same contract as {@code java.util.concurrent.Flow.Subscription} */
+	public interface Demand {
+		/** request {@code n} more batches, non-positive values cancel the subscription and signal onError */
+		void request(long n);
+
+		void cancel();
+	}
+
+	protected final FolderWatcher<T> watcher;
+	protected final FileMatcher<T> matcher;
+	protected final Executor executor;
+	protected final long debounce;
+
+	/**
+	 * @param matcher matcher to publish changes for, or null for all matchers of the watcher
+	 * @param executor executor to call the subscribers on
+	 * @param debounce (ms) how long to wait for more changes to pickup burst changes in a single batch
+	 * */
+	public BatchPublisher(FolderWatcher<T> watcher, FileMatcher<T> matcher, Executor executor, long debounce) {
+		this.watcher = watcher;
+		this.matcher = matcher;
+		this.executor = executor;
+		this.debounce = debounce;
+	}
+
+	public void subscribe(Subscriber<T> subscriber) {
+		if(subscriber == null) throw new NullPointerException("subscriber must be defined");
+		DemandSubscription<T> subscription = new DemandSubscription<>(watcher, matcher, subscriber, executor, debounce, watcher.getDebounceTimer());
+		subscriber.onSubscribe(subscription);
+		watcher.register(subscription);
+	}
+
+	static class DemandSubscription<T> extends Subscription<T> implements Demand {
+
+		protected final Subscriber<T> subscriber;
+		protected boolean cancelled;
+		protected boolean completeAfterRunning;
+
+		DemandSubscription(FolderWatcher<T> watcher, FileMatcher<T> matcher, final Subscriber<T> subscriber, Executor executor, long debounce, ScheduledExecutorService timer) {
+			super(watcher, matcher, new ChangeListener<T>() {
+				@Override
+				public void onChanges(List<FileChangeEntry<T>> changes) {
+					subscriber.onNext(changes);
+				}
+			}, executor, debounce, timer);
+			this.subscriber = subscriber;
+			this.demand = 0;
+		}
+
+		@Override
+		public void request(long n) {
+			synchronized (this) {
+				if(cancelled) return;
+			}
+			if(n > 0) {
+				super.request(n);
+				return;
+			}
+			cancel();
+			signal(new Runnable() {
+				@Override
+				public void run() {
+					subscriber.onError(new IllegalArgumentException("requested batches must be positive"));
+				}
+			});
+		}
+
+		@Override
+		public void cancel() {
+			synchronized (this) {
+				cancelled = true;
+				demand = 0;
+			}
+			close();
+		}
+
+		@Override
+		protected void failed(final Exception e) {
+			cancel();
+			subscriber.onError(e);
+		}
+
+		@Override
+		protected void watcherClosed() {
+			synchronized (this) {
+				if(cancelled) return;
+				cancelled = true;
+				demand = 0;
+				pending.clear();
+				// onComplete must not overlap a running onNext
+				if(running) {
+					completeAfterRunning = true;
+					return;
+				}
+			}
+			complete();
+		}
+
+		@Override
+		protected void done() {
+			boolean complete;
+			synchronized (this) {
+				super.done();
+				complete = completeAfterRunning;
+				completeAfterRunning = false;
+			}
+			if(complete) complete();
+		}
+
+		private void complete() {
+			signal(new Runnable() {
+				@Override
+				public void run() {
+					subscriber.onComplete();
+				}
+			});
+		}
+
+		private void signal(Runnable runnable) {
+			try {
+				executor.execute(runnable);
+			} catch (RejectedExecutionException e) {
+				runnable.run();
+			}
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package hr.hrg.javawatcher;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reduces changes to one entry per path and matcher, keeping the order in which paths first changed.
+ * Each path keeps only the first and last change type, from which the net effect is calculated:
+ * <ul>
+ * 	<li>CREATE ... DELETE - nothing, the file did not exist before and does not exist now
+ * 	<li>CREATE ... (CREATE|MODIFY) - CREATE
+ * 	<li>(DELETE|MODIFY) ... DELETE - DELETE
+ * 	<li>(DELETE|MODIFY) ... (CREATE|MODIFY) - MODIFY
+ * </ul>
+ * Adding a change is O(1). Not thread safe.
+ * */
+public class ChangeCoalescer<T> {
+
+	protected final Map<Key, Net<T>> changes = new LinkedHashMap<>();
+
+	public void add(FileChangeEntry<T> change) {
+		Key key = new Key(change.getPath(), change.getMatcher());
+		Net<T> net = changes.get(key);
+		if(net == null) {
+			changes.put(key, new Net<T>(change));
+		}else {
+			net.last = change;
+		}
+	}
+
+	public void addAll(Collection<FileChangeEntry<T>> changes) {
+		for(FileChangeEntry<T> change:changes) add(change);
+	}
+
+	/** Number of paths with changes, including those that cancelled out */
+	public int size() {
+		return changes.size();
+	}
+
+	public boolean isEmpty() {
+		return changes.isEmpty();
+	}
+
+	public void clear() {
+		changes.clear();
+	}
+
+	/** Net effect of changes added until now, in the order paths first changed */
+	public List<FileChangeEntry<T>> getChanges() {
+		List<FileChangeEntry<T>> list = new ArrayList<>(changes.size());
+		for(Net<T> net:changes.values()) {
+			FileChangeEntry<T> change = net.toChange();
+			if(change != null) list.add(change);
+		}
+		return list;
+	}
+
+	/** Net effect of the changes, see {@link ChangeCoalescer} */
+	public static <T> List<FileChangeEntry<T>> coalesce(Collection<FileChangeEntry<T>> changes) {
+		ChangeCoalescer<T> coalescer = new ChangeCoalescer<>();
+		coalescer.addAll(changes);
+		return coalescer.getChanges();
+	}
+
+	static class Net<T> {
+		final FileChangeEntry<T> first;
+		FileChangeEntry<T> last;
+
+		Net(FileChangeEntry<T> first) {
+			this.first = first;
+			this.last = first;
+		}
+
+		FileChangeEntry<T> toChange() {
+			if(first == last || last.getType() == FileChangeType.OVERFLOW) return last;
+
+			boolean existedBefore = first.getType() != FileChangeType.CREATE;
+			boolean existsAfter = last.getType() != FileChangeType.DELETE;
+			FileChangeType type;
+			if(existedBefore) {
+				type = existsAfter ? FileChangeType.MODIFY : FileChangeType.DELETE;
+			}else {
+				if(!existsAfter) return null;
+				type = FileChangeType.CREATE;
+			}
+			return type == last.getType() ? last : new FileChangeEntry<T>(last.getPath(), type, last.getMatcher());
+		}
+	}
+
+	static class Key {
+		final Path path;
+		final FileMatcher<?> matcher;
+		final int hash;
+
+		Key(Path path, FileMatcher<?> matcher) {
+			this.path = path;
+			this.matcher = matcher;
+			this.hash = 31 * path.hashCode() + (matcher == null ? 0 : matcher.hashCode());
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof Key)) return false;
+			Key other = (Key) obj;
+			return path.equals(other.path) && (matcher == null ? other.matcher == null : matcher.equals(other.matcher));
+		}
+	}
+}
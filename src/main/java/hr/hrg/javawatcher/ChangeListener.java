@@ -0,0 +1,16 @@
+package hr.hrg.javawatcher;
+
+import java.util.List;
+
+/**
+ * Listener for batches of changes, registered with {@link FolderWatcher#subscribe(ChangeListener, java.util.concurrent.Executor, long)}.
+ * */
+public interface ChangeListener<T> {
+
+	/**
+	 * Called on the executor provided when subscribing, never concurrently for the same subscription.
+	 *
+	 * @param changes changes since the previous call
+	 * */
+	void onChanges(List<FileChangeEntry<T>> changes);
+}
@@ -0,0 +1,144 @@
+package hr.hrg.javawatcher;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Set of rules merged into lookup structures so a path is classified in one pass instead of
+ * checking every {@link PathMatcher} one after another.
+ * <ul>
+ * 	<li>literal rules ({@code src/main.scss}) go to a hash set
+ * 	<li>extension rules ({@code *.scss}, {@code **.scss}, {@code **}{@code /*.scss}) go to a hash map by extension
+ * 	<li>folder rules ({@code build/**}) go to a hash set of folder prefixes
+ * 	<li>everything else (and all {@code regex:} rules) is checked with the original {@link PathMatcher}
+ * </ul>
+ * Results are the same as checking the original glob matchers, as the fast paths are only used for rules
+ * where it is easy to prove so. Paths with line terminators always use the original matchers, because
+ * JDK glob {@code **} does not match them.
+ *
+ * */
+public class CompiledGlobs {
+
+	/** {@code **.ext} - any depth */
+	static final int EXT_ANY = 1;
+	/** {@code *.ext} - only files without folder */
+	static final int EXT_FLAT = 2;
+	/** {@code **}{@code /*.ext} - only files in a sub-folder */
+	static final int EXT_NESTED = 4;
+
+	/** Compiled fast paths assume {@code /} separator and case sensitive matching of the default file system */
+	public static final boolean SUPPORTED = File.separatorChar == '/';
+
+	protected final Set<String> literals = new HashSet<>();
+	protected final Set<String> prefixes = new HashSet<>();
+	protected final Map<String, Integer> extensions = new HashMap<>();
+	protected final List<PathMatcher> fallback = new ArrayList<>();
+	protected final List<PathMatcher> all = new ArrayList<>();
+	protected boolean matchAll;
+
+	/**
+	 * Add a rule. The matcher must be the one generated from the rule, so it can be used
+	 * when the rule can not be compiled.
+	 * */
+	public void add(String rule, PathMatcher matcher) {
+		all.add(matcher);
+		if(!SUPPORTED || rule.startsWith("regex:") || !compile(rule)){
+			fallback.add(matcher);
+		}
+	}
+
+	protected boolean compile(String glob) {
+		if(glob.equals("**")) {
+			matchAll = true;
+			return true;
+		}
+
+		if(isLiteral(glob, 0, glob.length())){
+			literals.add(glob);
+			return true;
+		}
+
+		if(glob.startsWith("**/*.")) return addExtension(glob.substring(5), EXT_NESTED);
+		if(glob.startsWith("**.")) return addExtension(glob.substring(3), EXT_ANY);
+		if(glob.startsWith("*.")) return addExtension(glob.substring(2), EXT_FLAT);
+
+		if(glob.endsWith("/**") && glob.length() > 3 && isLiteral(glob, 0, glob.length()-3)) {
+			prefixes.add(glob.substring(0, glob.length()-3));
+			return true;
+		}
+
+		return false;
+	}
+
+	protected boolean addExtension(String ext, int flag) {
+		if(ext.isEmpty() || !isLiteral(ext, 0, ext.length()) || ext.indexOf('.') != -1 || ext.indexOf('/') != -1) return false;
+		Integer flags = extensions.get(ext);
+		extensions.put(ext, flags == null ? flag : flags | flag);
+		return true;
+	}
+
+	static boolean isLiteral(String glob, int from, int to) {
+		for(int i=from; i<to; i++) {
+			switch (glob.charAt(i)) {
+			case '*': case '?': case '[': case ']': case '{': case '}': case '\\':
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static boolean hasLineTerminator(String str) {
+		for(int i=0; i<str.length(); i++) {
+			char c = str.charAt(i);
+			if(c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') return true;
+		}
+		return false;
+	}
+
+	public boolean isEmpty() {
+		return all.isEmpty();
+	}
+
+	public boolean matches(Path path) {
+		String str = path.toString();
+
+		if(hasLineTerminator(str)) {
+			for(int i=0; i<all.size(); i++) {
+				if(all.get(i).matches(path)) return true;
+			}
+			return false;
+		}
+
+		if(matchAll || literals.contains(str)) return true;
+
+		int slash = str.lastIndexOf('/');
+		if(!extensions.isEmpty()) {
+			int dot = str.lastIndexOf('.');
+			if(dot > slash) {
+				Integer flags = extensions.get(str.substring(dot+1));
+				if(flags != null) {
+					if((flags & EXT_ANY) != 0) return true;
+					if((flags & (slash == -1 ? EXT_FLAT : EXT_NESTED)) != 0) return true;
+				}
+			}
+		}
+
+		if(!prefixes.isEmpty() && slash != -1) {
+			for(int i = str.indexOf('/'); i != -1; i = str.indexOf('/', i+1)) {
+				if(prefixes.contains(str.substring(0, i))) return true;
+			}
+		}
+
+		for(int i=0; i<fallback.size(); i++) {
+			if(fallback.get(i).matches(path)) return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,179 @@
+package hr.hrg.javawatcher;
+
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Dependencies between files, to rebuild only what a change affects instead of everything.
+ * <p>
+ * Roots are files that are built ({@code main.scss}), and edges are recorded while building them
+ * ({@code main.scss} imports {@code _vars.scss}). When a batch of changes arrives, {@link #affectedRoots(Collection)}
+ * follows edges backwards from the changed files and returns only the roots that reach them, directly or
+ * through other files. After a root is built again, {@link #setDependencies(Path, Collection)} replaces its edges,
+ * updating only the difference, so the graph follows imports as they are added and removed.
+ * </p><p>
+ * Paths are stored absolute and normalized, so paths from different matchers and relative paths can be mixed.
+ * Cycles are allowed. Methods are synchronized, so the graph can be updated from build threads while
+ * changes are taken on another.
+ * </p>
+ * */
+public class DependencyGraph {
+
+	/** file -> files it depends on */
+	protected final Map<Path, Set<Path>> dependencies = new HashMap<>();
+	/** file -> files that depend on it */
+	protected final Map<Path, Set<Path>> dependents = new HashMap<>();
+	protected final Set<Path> roots = new HashSet<>();
+
+	static Path key(Path path) {
+		return path.toAbsolutePath().normalize();
+	}
+
+	/** Absolute path of the changed file, as used in the graph */
+	public static Path key(FileChangeEntry<?> change) {
+		return key(change.getMatcher().getRootPath().resolve(change.getPath()));
+	}
+
+	public synchronized void addRoot(Path file) {
+		roots.add(key(file));
+	}
+
+	public synchronized boolean removeRoot(Path file) {
+		return roots.remove(key(file));
+	}
+
+	public synchronized boolean isRoot(Path file) {
+		return roots.contains(key(file));
+	}
+
+	public synchronized Set<Path> getRoots() {
+		return new HashSet<>(roots);
+	}
+
+	/** Record that the file depends on the dependency (for example imports it) */
+	public synchronized void addDependency(Path file, Path dependency) {
+		link(key(file), key(dependency));
+	}
+
+	/**
+	 * Replace dependencies of the file with the ones found while processing it again.
+	 * Only edges that were added or removed are changed.
+	 * */
+	public synchronized void setDependencies(Path file, Collection<Path> newDependencies) {
+		Path from = key(file);
+		Set<Path> wanted = new HashSet<>();
+		for(Path dependency:newDependencies) wanted.add(key(dependency));
+
+		Set<Path> current = dependencies.get(from);
+		if(current != null) {
+			for(Path old:current.toArray(new Path[current.size()])) {
+				if(!wanted.remove(old)) unlink(from, old);
+			}
+		}
+		for(Path to:wanted) link(from, to);
+	}
+
+	/** Files the file depends on directly */
+	public synchronized Set<Path> getDependencies(Path file) {
+		return copy(dependencies.get(key(file)));
+	}
+
+	/** Files that depend on the file directly */
+	public synchronized Set<Path> getDependents(Path file) {
+		return copy(dependents.get(key(file)));
+	}
+
+	/**
+	 * Forget the root mark and the dependencies of the file (it was deleted).
+	 * Edges from files that depend on it stay until those files are processed again.
+	 * */
+	public synchronized void remove(Path file) {
+		Path from = key(file);
+		roots.remove(from);
+		Set<Path> current = dependencies.get(from);
+		if(current == null) return;
+		for(Path to:current.toArray(new Path[current.size()])) unlink(from, to);
+	}
+
+	/** Changed files and all files that depend on them directly or indirectly */
+	public synchronized Set<Path> affected(Collection<Path> changed) {
+		Set<Path> visited = new LinkedHashSet<>();
+		ArrayDeque<Path> todo = new ArrayDeque<>();
+		for(Path p:changed) {
+			Path k = key(p);
+			if(visited.add(k)) todo.add(k);
+		}
+		while(!todo.isEmpty()) {
+			Set<Path> up = dependents.get(todo.poll());
+			if(up == null) continue;
+			for(Path p:up) {
+				if(visited.add(p)) todo.add(p);
+			}
+		}
+		return visited;
+	}
+
+	/** Roots that are changed or depend on a changed file, directly or indirectly */
+	public synchronized Set<Path> affectedRoots(Collection<Path> changed) {
+		Set<Path> affected = affected(changed);
+		affected.retainAll(roots);
+		return affected;
+	}
+
+	/**
+	 * Roots to build again for a batch of changes from the watcher. Deleted files are {@link #remove(Path) removed}
+	 * first, so a deleted root is not returned, but roots that depended on a deleted file are.
+	 * A {@link FileChangeType#OVERFLOW} means changes of that matcher were lost, so all roots under the matcher root
+	 * are returned.
+	 * */
+	public synchronized <T> Set<Path> rootsToRebuild(Collection<FileChangeEntry<T>> changes) {
+		Set<Path> changed = new HashSet<>();
+		Set<Path> overflowed = new HashSet<>();
+		for(FileChangeEntry<T> change:changes) {
+			Path file = key(change);
+			if(change.getType() == FileChangeType.OVERFLOW) {
+				// path of the overflow is the matcher root
+				overflowed.add(file);
+				continue;
+			}
+			if(change.getType() == FileChangeType.DELETE) remove(file);
+			changed.add(file);
+		}
+		Set<Path> result = affectedRoots(changed);
+		for(Path folder:overflowed) {
+			for(Path root:roots) {
+				if(root.startsWith(folder)) result.add(root);
+			}
+		}
+		return result;
+	}
+
+	private void link(Path from, Path to) {
+		Set<Path> out = dependencies.get(from);
+		if(out == null) dependencies.put(from, out = new HashSet<>());
+		if(!out.add(to)) return;
+
+		Set<Path> in = dependents.get(to);
+		if(in == null) dependents.put(to, in = new HashSet<>());
+		in.add(from);
+	}
+
+	private void unlink(Path from, Path to) {
+		Set<Path> out = dependencies.get(from);
+		if(out != null && out.remove(to) && out.isEmpty()) dependencies.remove(from);
+
+		Set<Path> in = dependents.get(to);
+		if(in != null && in.remove(from) && in.isEmpty()) dependents.remove(to);
+	}
+
+	private static Set<Path> copy(Set<Path> set) {
+		return set == null ? Collections.<Path>emptySet() : new HashSet<>(set);
+	}
+}
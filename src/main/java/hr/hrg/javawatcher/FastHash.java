@@ -0,0 +1,122 @@
+package hr.hrg.javawatcher;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 64 bit xxHash (XXH64) of buffer contents. Non-cryptographic and fast, used to detect content changes.
+ * Reads 8 bytes at a time, so direct and memory-mapped buffers are hashed without copying to the heap.
+ * */
+public class FastHash {
+
+	private static final long P1 = 0x9E3779B185EBCA87L;
+	private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long P3 = 0x165667B19E3779F9L;
+	private static final long P4 = 0x85EBCA77C2B2AE63L;
+	private static final long P5 = 0x27D4EB2F165667C5L;
+
+	private final long seed;
+	private long v1, v2, v3, v4;
+	private long total;
+
+	/**
+	 * Hash of data read in parts, for files read in chunks: {@link #update(ByteBuffer)} for each part and
+	 * {@link #finish(ByteBuffer)} for the last one give the same hash as {@link #xxh64(ByteBuffer, long)} of all data.
+	 * */
+	public FastHash(long seed) {
+		this.seed = seed;
+		v1 = seed + P1 + P2;
+		v2 = seed + P2;
+		v3 = seed;
+		v4 = seed - P1;
+	}
+
+	/**
+	 * Hash the remaining bytes of the buffer. The position of the buffer is not changed.
+	 * */
+	public static long xxh64(ByteBuffer buffer, long seed) {
+		return new FastHash(seed).finish(buffer);
+	}
+
+	/**
+	 * Add the remaining bytes of the buffer, that are not the end of data. The position of the buffer is not changed.
+	 * 
+	 * @throws IllegalArgumentException if number of bytes is not divisible by 32
+	 * */
+	public void update(ByteBuffer buffer) {
+		ByteBuffer buf = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+		int len = buf.remaining();
+		if(len % 32 != 0) throw new IllegalArgumentException("Only the last part can have length not divisible by 32, not "+len);
+		stripes(buf, len);
+		total += len;
+	}
+
+	/**
+	 * Add the remaining bytes of the buffer as the end of data. The position of the buffer is not changed.
+	 * 
+	 * @return hash of all data
+	 * */
+	public long finish(ByteBuffer buffer) {
+		ByteBuffer buf = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+		int len = buf.remaining();
+		int i = stripes(buf, len);
+		total += len;
+		long h;
+
+		if(total >= 32) {
+			h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			h = merge(h, v1);
+			h = merge(h, v2);
+			h = merge(h, v3);
+			h = merge(h, v4);
+		}else {
+			h = seed + P5;
+		}
+
+		h += total;
+
+		for(; i + 8 <= len; i += 8) {
+			h ^= round(0, buf.getLong(i));
+			h = Long.rotateLeft(h, 27) * P1 + P4;
+		}
+		if(i + 4 <= len) {
+			h ^= (buf.getInt(i) & 0xFFFFFFFFL) * P1;
+			h = Long.rotateLeft(h, 23) * P2 + P3;
+			i += 4;
+		}
+		for(; i < len; i++) {
+			h ^= (buf.get(i) & 0xFFL) * P5;
+			h = Long.rotateLeft(h, 11) * P1;
+		}
+
+		h ^= h >>> 33;
+		h *= P2;
+		h ^= h >>> 29;
+		h *= P3;
+		h ^= h >>> 32;
+		return h;
+	}
+
+	/** @return number of bytes hashed, whole 32 byte stripes */
+	private int stripes(ByteBuffer buf, int len) {
+		int i = 0;
+		for(int limit = len - 32; i <= limit; i += 32) {
+			v1 = round(v1, buf.getLong(i));
+			v2 = round(v2, buf.getLong(i + 8));
+			v3 = round(v3, buf.getLong(i + 16));
+			v4 = round(v4, buf.getLong(i + 24));
+		}
+		return i;
+	}
+
+	private static long round(long acc, long input) {
+		acc += input * P2;
+		acc = Long.rotateLeft(acc, 31);
+		return acc * P1;
+	}
+
+	private static long merge(long acc, long val) {
+		acc ^= round(0, val);
+		return acc * P1 + P4;
+	}
+}
@@ -3,8 +3,12 @@ package hr.hrg.javawatcher;
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent.Kind;
 
+import io.methvin.watcher.DirectoryChangeEvent.EventType;
+
 public enum FileChangeType {
-	CREATE,DELETE,MODIFY;
+	CREATE,DELETE,MODIFY,
+	/** changes were lost for the path (folder), and it should be scanned again */
+	OVERFLOW;
 
 	public static FileChangeType fromKind(Kind<?> kind) {
 		if(kind == StandardWatchEventKinds.ENTRY_MODIFY) return MODIFY;
@@ -12,4 +16,13 @@ public enum FileChangeType {
 		if(kind == StandardWatchEventKinds.ENTRY_DELETE) return DELETE;
 		return null;
 	}
+
+	public static FileChangeType fromEventType(EventType type) {
+		switch (type) {
+		case CREATE: return CREATE;
+		case MODIFY: return MODIFY;
+		case DELETE: return DELETE;
+		default: return null;
+		}
+	}
 }
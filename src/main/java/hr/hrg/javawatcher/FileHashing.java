@@ -0,0 +1,17 @@
+package hr.hrg.javawatcher;
+
+/**
+ * How a {@link FileMatcher} wants a MODIFY event for a matched file to be verified, before it is reported.
+ * Files not matched by any matcher are never read or hashed.
+ * */
+public enum FileHashing {
+	/** no verification, every modify event from the watch service is reported */
+	NONE,
+	/** reported if size or last modified time changed, needs only file attributes */
+	SIZE_MTIME,
+	/** reported if the content hash changed, files larger than {@link FileMatcher#getHashSizeLimit()} use SIZE_MTIME */
+	CONTENT;
+
+	/** default size limit for content hashing */
+	public static final long DEFAULT_SIZE_LIMIT = 16 * 1024 * 1024;
+}
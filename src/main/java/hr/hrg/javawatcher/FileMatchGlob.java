@@ -1,14 +1,18 @@
 package hr.hrg.javawatcher;
 
+import java.io.File;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NavigableSet;
 import java.util.Set;
-import java.util.TreeSet;
 import java.util.concurrent.ArrayBlockingQueue;
 
 import io.methvin.watcher.DirectoryWatcher;
@@ -39,17 +43,42 @@ public class FileMatchGlob<T> implements FileMatcher<T>{
 	protected List<PathMatcher> includes = new ArrayList<>();
 	protected List<PathMatcher> excludes = new ArrayList<>();
 
+	/** rules as provided, used to build {@link CompiledGlobs} */
+	protected List<String> includeRules = new ArrayList<>();
+	protected List<String> excludeRules = new ArrayList<>();
+
+	/** Default: FALSE. If rules are merged into {@link CompiledGlobs} to check a path in one pass. */
+	protected boolean compiled = false;
+	protected volatile CompiledGlobs compiledIncludes;
+	protected volatile CompiledGlobs compiledExcludes;
+	protected volatile List<GlobDirRule> dirRules;
+
+	/** Default: NATIVE. How changes are detected */
+	protected WatchMode watchMode = WatchMode.NATIVE;
+
+	/** Default: SIZE_MTIME. How modifications of matched files are verified */
+	protected FileHashing hashing = FileHashing.SIZE_MTIME;
+	/** Default: {@link FileHashing#DEFAULT_SIZE_LIMIT}. Larger files are not content hashed */
+	protected long hashSizeLimit = FileHashing.DEFAULT_SIZE_LIMIT;
+
+	/** set by {@link FolderWatcher#init(boolean)}, the queue can not be replaced after that */
 	protected volatile boolean started = false;
 	protected Path rootPath;
 	protected Path rootPathA;
 
+	/** index of matched files, built on first query and then updated with each change, guarded by this */
+	protected volatile PathIndex index;
+
+	/** Default: TREE_SET. How matched and excluded paths are stored */
+	protected PathStorage storage = PathStorage.TREE_SET;
+
 	/** Default: TRUE. If this matcher will collect matched Files.  */
 	protected boolean collectMatched = true;
-	protected Set<Path> matched = new TreeSet<>();
+	protected Set<Path> matched = storage.newSet();
 
 	/** Default: FALSE. If this matcher will collect unmatched Files.  */
 	protected boolean collectExcluded = false;
-	protected Set<Path> excluded = new TreeSet<>();
+	protected Set<Path> excluded = storage.newSet();
 
 	protected T context; 
 
@@ -81,41 +110,80 @@ public class FileMatchGlob<T> implements FileMatcher<T>{
 	public FileMatchGlob<T> includes(Collection<String> globs){
 		for (String glob : globs) {
 			includes.add(makeRule(glob));
+			includeRules.add(glob);
 		}
+		compiledIncludes = null;
+		dirRules = null;
 		return this;
 	}
 
 	public FileMatchGlob<T> includes(String ... globs){
 		for (String glob : globs) {
 			includes.add(makeRule(glob));
+			includeRules.add(glob);
 		}
+		compiledIncludes = null;
+		dirRules = null;
 		return this;
 	}
 
 	public FileMatchGlob<T> excludes(Collection<String> globs){
 		for (String glob : globs) {
 			excludes.add(makeRule(glob));
+			excludeRules.add(glob);
 		}
+		compiledExcludes = null;
 		return this;
 	}
 	
 	public FileMatchGlob<T> excludes(String ... globs){
 		for (String glob : globs) {
 			excludes.add(makeRule(glob));
+			excludeRules.add(glob);
 		}
+		compiledExcludes = null;
 		return this;
 	}
 
 	/**
-	 * Remove all Paths that are in the specified directory.
+	 * Remove all Paths that are in the specified directory, including sub-directories.
 	 * */
 	public static final void removeAllFromDir(Path path, Collection<Path> collection){
-		Iterator<Path> iterator = collection.iterator();
-		Path p = null;
+		removeSubtree(path, collection, null);
+	}
+
+	/**
+	 * Remove all Paths under the directory (the directory itself included, if in the collection).
+	 * Uses the ordering of {@link PathTrie} and {@link NavigableSet} to visit only the subtree, other collections are fully scanned.
+	 * 
+	 * @param removed collects removed paths, can be null
+	 * @return number of removed paths
+	 * */
+	public static int removeSubtree(Path dir, Collection<Path> collection, Collection<Path> removed){
+		if(collection instanceof PathTrie) return ((PathTrie) collection).removeSubtree(dir, removed);
+		if(collection instanceof OffHeapPathSet) return ((OffHeapPathSet) collection).removeSubtree(dir, removed);
+
+		Collection<Path> range = collection;
+		String prefix = dir.toString();
+		if(collection instanceof NavigableSet && !prefix.isEmpty()) {
+			// children start with dir + separator, and sort before dir + (separator+1), as paths compare by their string form
+			@SuppressWarnings("unchecked")
+			NavigableSet<Path> set = (NavigableSet<Path>) collection;
+			if(set.comparator() == null) {
+				range = set.subSet(dir, true, dir.getFileSystem().getPath(prefix + (char)(File.separatorChar + 1)), false);
+			}
+		}
+
+		int count = 0;
+		Iterator<Path> iterator = range.iterator();
 		while(iterator.hasNext()){
-			p = iterator.next();
-			if(path.equals(p.getParent())) iterator.remove();
-		}		
+			Path p = iterator.next();
+			if(!p.startsWith(dir)) continue;
+			iterator.remove();
+			if(removed != null) removed.add(p);
+			count++;
+		}
+		return count;
 	}
 	
 	public List<PathMatcher> getExcludes() {
@@ -146,9 +214,48 @@ public class FileMatchGlob<T> implements FileMatcher<T>{
 	@Override
 	public Collection<Path> getMatched(){
 		if(!collectMatched) throw new RuntimeException(NOT_COLLECTING_MATCHES+toString());
+		if(matched instanceof VersionedPathSet) return ((VersionedPathSet) matched).snapshot();
 		return matched;
 	}
 
+	/** 
+	 * {@inheritDoc}
+	 * With {@link PathStorage#VERSIONED} this is a single volatile read, other storages are copied.
+	 */
+	@Override
+	public PathSnapshot snapshot(){
+		if(!collectMatched) throw new RuntimeException(NOT_COLLECTING_MATCHES+toString());
+		if(matched instanceof VersionedPathSet) return ((VersionedPathSet) matched).snapshot();
+		return FileMatcher.super.snapshot();
+	}
+
+	/** {@inheritDoc} Built on first call, and then updated with each change instead of being built again. */
+	@Override
+	public PathIndex index(){
+		if(!collectMatched) throw new RuntimeException(NOT_COLLECTING_MATCHES+toString());
+		PathIndex i = index;
+		if(i != null) return i;
+		// changes to matched files are done while holding the matcher lock
+		synchronized (this) {
+			if(index == null) index = PathIndex.of(matched);
+			return index;
+		}
+	}
+
+	/** Update the index (if it was built) with a matched file that was added */
+	protected void indexAdded(Path path){
+		PathIndex i = index;
+		if(i != null) index = i.with(path);
+	}
+
+	/** Update the index (if it was built) with matched files that were removed */
+	protected void indexRemoved(Collection<Path> paths){
+		PathIndex i = index;
+		if(i == null) return;
+		for(Path path:paths) i = i.without(path);
+		index = i;
+	}
+
 	public int getMatchedCount(){
 		if(!collectMatched) throw new RuntimeException(NOT_COLLECTING_MATCHES+toString());
 		return matched.size();
@@ -189,6 +296,7 @@ public class FileMatchGlob<T> implements FileMatcher<T>{
 	@Override
 	public void setCollectMatched(boolean collectMatched) {
 		this.collectMatched = collectMatched;
+		if(!collectMatched) index = null;
 	}
 	
 	// -------------------------- implements FolderGlob ------- interface --------------------------
@@ -196,6 +304,10 @@ public class FileMatchGlob<T> implements FileMatcher<T>{
 	/** {@inheritDoc} */
 	@Override
 	public boolean isMatch(Path path){
+		if(compiled && isCompilable()) {
+			if(includes.size() >0 && !getCompiledIncludes().matches(path)) return false;
+			return excludes.size() == 0 || !getCompiledExcludes().matches(path);
+		}
 		if(includes.size() >0){
 			boolean included = false;
 			for (PathMatcher inc : includes) {
@@ -215,24 +327,176 @@ public class FileMatchGlob<T> implements FileMatcher<T>{
 	/** {@inheritDoc} */
 	@Override
 	public boolean isExcluded(Path path){
+		if(compiled && isCompilable()) {
+			return excludes.size() > 0 && getCompiledExcludes().matches(path);
+		}
 		for (PathMatcher ex : excludes) {
 			if(ex.matches(path)) return true;
 		}
 		return false;
 	}
+
+	/** 
+	 * Rules can only be compiled if all were added via {@link #includes(String...)}/{@link #excludes(String...)}, 
+	 * and not directly to the lists from {@link #getIncludes()}/{@link #getExcludes()}
+	 * */
+	protected boolean isCompilable() {
+		return includes.size() == includeRules.size() && excludes.size() == excludeRules.size();
+	}
+
+	protected CompiledGlobs getCompiledIncludes() {
+		CompiledGlobs c = compiledIncludes;
+		if(c == null) compiledIncludes = c = compile(includeRules, includes);
+		return c;
+	}
+
+	protected CompiledGlobs getCompiledExcludes() {
+		CompiledGlobs c = compiledExcludes;
+		if(c == null) compiledExcludes = c = compile(excludeRules, excludes);
+		return c;
+	}
+
+	protected CompiledGlobs compile(List<String> rules, List<PathMatcher> matchers) {
+		CompiledGlobs c = new CompiledGlobs();
+		for(int i=0; i<rules.size(); i++) {
+			c.add(rules.get(i), matchers.get(i));
+		}
+		return c;
+	}
+
+	protected List<GlobDirRule> getDirRules() {
+		List<GlobDirRule> rules = dirRules;
+		if(rules == null) {
+			rules = new ArrayList<>(includeRules.size());
+			for(String rule:includeRules) rules.add(GlobDirRule.parse(rule));
+			dirRules = rules;
+		}
+		return rules;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean isDirRelevant(Path dir) {
+		if(includes.size() == 0 || includes.size() != includeRules.size()) return true;
+		for(GlobDirRule rule:getDirRules()) {
+			if(rule.canContain(dir)) return true;
+		}
+		return false;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Collection<Path> getWatchPrefixes() {
+		Set<Path> prefixes = new HashSet<>();
+		if(!recursive || includes.size() == 0 || includes.size() != includeRules.size()) {
+			prefixes.add(Paths.get(""));
+			return prefixes;
+		}
+		for(GlobDirRule rule:getDirRules()) {
+			prefixes.add(Paths.get(rule.getLiteralPrefix()));
+		}
+		return prefixes;
+	}
+
+	public boolean isCompiled() {
+		return compiled;
+	}
+
+	/**
+	 * Merge include/exclude rules into {@link CompiledGlobs} so each path is checked in one pass
+	 * instead of trying every rule. Results are the same, but if you override {@link #makeRule(String)}
+	 * with different semantics than the default glob, leave this off.
+	 * */
+	public void setCompiled(boolean compiled) {
+		this.compiled = compiled;
+	}
+
+	public PathStorage getStorage() {
+		return storage;
+	}
+
+	/**
+	 * Change how matched and excluded paths are stored. Use {@link PathStorage#TRIE} for millions of files, and
+	 * {@link PathStorage#VERSIONED} when matched files are read from other threads while the watcher is running,
+	 * then {@link #getMatched()} and {@link #snapshot()} return immutable snapshots without copying, but not sorted.
+	 * With other storages {@link #getMatched()} must not be iterated while the watcher is running, and {@link #snapshot()} copies the set.
+	 * Paths collected until now are moved to the new storage.
+	 * */
+	public void setStorage(PathStorage storage) {
+		if(storage == null) throw new NullPointerException("storage must be defined");
+		if(storage == this.storage) return;
+		Set<Path> newMatched = storage.newSet();
+		newMatched.addAll(matched);
+		Set<Path> newExcluded = storage.newSet();
+		newExcluded.addAll(excluded);
+		this.matched = newMatched;
+		this.excluded = newExcluded;
+		this.storage = storage;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public WatchMode getWatchMode() {
+		return watchMode;
+	}
+
+	/** Use {@link WatchMode#POLL} for file systems where native events never arrive. Must be set before watching starts. */
+	public void setWatchMode(WatchMode watchMode) {
+		if(watchMode == null) throw new NullPointerException("watchMode must be defined");
+		this.watchMode = watchMode;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public FileHashing getHashing() {
+		return hashing;
+	}
+
+	/** Set how modifications of matched files are verified. Must be set before watching starts. */
+	public void setHashing(FileHashing hashing) {
+		if(hashing == null) throw new NullPointerException("hashing must be defined");
+		this.hashing = hashing;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public long getHashSizeLimit() {
+		return hashSizeLimit;
+	}
+
+	public void setHashSizeLimit(long hashSizeLimit) {
+		this.hashSizeLimit = hashSizeLimit;
+	}
 	
 	/** {@inheritDoc} */
 	@Override
 	public void fileDeleted(Path path){
-		matched.remove(path);
+		if(matched.remove(path)) indexRemoved(Collections.singletonList(path));
 		excluded.remove(path);
 	}
 	
 	/** {@inheritDoc} */
 	@Override
 	public void dirInvalid(Path path){
-		removeAllFromDir(path, matched);
-		removeAllFromDir(path, excluded);
+		List<Path> removed = index == null ? null : new ArrayList<Path>();
+		removeSubtree(path, matched, removed);
+		if(removed != null) indexRemoved(removed);
+		removeSubtree(path, excluded, null);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Collection<Path> dirDeleted(Path path){
+		if(!collectMatched) {
+			removeSubtree(path, excluded, null);
+			return isMatch(path) ? Collections.singletonList(path) : Collections.<Path>emptyList();
+		}
+		// only what was in the matched set, so a DELETE the watch service sends for a file already removed with its folder is not reported twice
+		List<Path> removed = new ArrayList<>();
+		removeSubtree(path, matched, removed);
+		indexRemoved(removed);
+		removeSubtree(path, excluded, null);
+		return removed;
 	}
 	
 	/** {@inheritDoc} */
@@ -251,7 +515,7 @@ public class FileMatchGlob<T> implements FileMatcher<T>{
 	@Override
 	public boolean offer(Path file) {
         if (isMatch(file)) {
-            if(collectMatched) matched.add(file);
+            if(collectMatched && matched.add(file)) indexAdded(file);
             return true;
         } else{
         	if(collectExcluded) excluded.add(file);
@@ -276,6 +540,19 @@ public class FileMatchGlob<T> implements FileMatcher<T>{
 	public ArrayBlockingQueue<FileChangeEntry<T>> getQ() {
 		return q;
 	}
+
+	public int getQueueCapacity() {
+		return q.size() + q.remainingCapacity();
+	}
+
+	/** 
+	 * Change capacity of the queue for changes (default 4098). Must be called before {@link FolderWatcher#init(boolean)}.
+	 * What happens when the queue is full is decided by {@link FolderWatcher#setOverflowPolicy(OverflowPolicy)}. 
+	 * */
+	public void setQueueCapacity(int capacity) {
+		if(started) throw new IllegalStateException("Queue capacity can not be changed after watching started");
+		q = new ArrayBlockingQueue<>(capacity);
+	}
 	
 	/** {@inheritDoc} */
 	@Override
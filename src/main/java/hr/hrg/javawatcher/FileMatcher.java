@@ -1,7 +1,9 @@
 package hr.hrg.javawatcher;
 
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.concurrent.ArrayBlockingQueue;
 
 import io.methvin.watcher.DirectoryWatcher;
@@ -30,6 +32,43 @@ public interface FileMatcher<F> {
 	 * */
 	public boolean isExcluded(Path path);
 
+	/** Check if the folder can contain files matched by this matcher. Folders that can not are skipped while scanning.
+	 * 
+	 * @param dir folder relative to the root
+	 * 
+	 * @return false only if no file in the folder or its sub-folders can be a match
+	 * */
+	public default boolean isDirRelevant(Path dir) {
+		return true;
+	}
+
+	/** 
+	 * Folders relative to the root that contain all possible matches, used to register less folders for watching.
+	 * 
+	 * @return folders relative to the root, empty path meaning the root itself
+	 * */
+	public default Collection<Path> getWatchPrefixes() {
+		return Collections.singletonList(Paths.get(""));
+	}
+
+	/**
+	 * How a modification of a matched file is verified before it is reported. Files are hashed once even if
+	 * more matchers accept them, using the most sensitive strategy among them.
+	 * */
+	public default FileHashing getHashing() {
+		return FileHashing.SIZE_MTIME;
+	}
+
+	/** Files larger than this (bytes) are checked by size and modified time instead of {@link FileHashing#CONTENT} */
+	public default long getHashSizeLimit() {
+		return FileHashing.DEFAULT_SIZE_LIMIT;
+	}
+
+	/** How changes are detected for this matcher */
+	public default WatchMode getWatchMode() {
+		return WatchMode.NATIVE;
+	}
+
 	/** Check if the provided path is a match and store in internal include/exclude lists.
 	 * 
 	 * Implementations that do not want to store matched/excluded paths can just return result from {@link #isMatch(Path)}
@@ -47,6 +86,17 @@ public interface FileMatcher<F> {
 	 * */
 	public void dirInvalid(Path path);
 
+	/**
+	 * Called when a path is deleted, before {@link #fileDeleted(Path)}. The watch service does not tell if it was a folder,
+	 * so implementations that store paths should remove everything under it.
+	 * 
+	 * @return matched paths that are gone (the path itself and for a folder files under it), DELETE is reported for each of them
+	 * */
+	public default Collection<Path> dirDeleted(Path path) {
+		dirInvalid(path);
+		return isMatch(path) ? Collections.singletonList(path) : Collections.<Path>emptyList();
+	}
+
 	/**
 	 * Method that will be called when a previously existing file is deleted, allowing maintenance of live files list.
 	 * 
@@ -65,6 +115,27 @@ public interface FileMatcher<F> {
 	 * */
 	public void setCollectMatched(boolean collectMatched);
 
+	/**
+	 * Immutable view of matched files, safe to iterate while the watcher keeps changing the matcher.
+	 * The default copies {@link #getMatched()} while holding the matcher lock, so implementations with versioned
+	 * storage should override it to return a snapshot without copying or locking.
+	 * */
+	public default PathSnapshot snapshot() {
+		synchronized (this) {
+			return PathSnapshot.copyOf(getMatched(), 0);
+		}
+	}
+
+	/** Index of the current {@link #snapshot()}, the default builds a new one on every call */
+	public default PathIndex index() {
+		return PathIndex.of(snapshot());
+	}
+
+	/** Query matched files by folder, extension and globs without copying them, see {@link PathQuery} */
+	public default PathQuery query() {
+		return new PathQuery(Collections.singletonList(index()));
+	}
+
 	public Path relativize(Path path);
 
 	DirectoryWatcher getWatcher();
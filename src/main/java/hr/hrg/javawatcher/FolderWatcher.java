@@ -1,24 +1,35 @@
 package hr.hrg.javawatcher;
 
 import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.FileSystems;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.WatchService;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 import io.methvin.watcher.DirectoryChangeEvent;
 import io.methvin.watcher.DirectoryChangeListener;
 import io.methvin.watcher.DirectoryWatcher;
-import io.methvin.watcher.DirectoryWatcher.Builder;
 import io.methvin.watcher.hashing.FileHasher;
 import io.methvin.watchservice.MacOSXListeningWatchService;
 
@@ -37,11 +48,90 @@ import io.methvin.watchservice.MacOSXListeningWatchService;
  * */
 public class FolderWatcher<T> implements AutoCloseable, IFolderWatcher<T> {
 
-	static Builder builder = DirectoryWatcher.builder();
 	public Object takeLock = new Object();
+
+	/** matchers that have changes in their queue, guarded by {@link #takeLock} */
+	protected final Set<FileMatcher<T>> ready = new LinkedHashSet<>();
 	
     /** {@link FileMatcher}s we are tracking */
     protected List<FileMatcher<T>> matchers = new ArrayList<>();	
+
+    /** single watcher shared by all matchers, created in {@link #init(boolean)} when watching is requested */
+    protected DirectoryWatcher watcher;
+
+    /** routes events from {@link #watcher} to matchers */
+    protected RootIndex<T> rootIndex;
+
+    /** Default: 0. Number of threads for the initial scan, values below 2 use the sequential walk. */
+    protected int scanParallelism = 0;
+
+    /** Default: FALSE. If changes are reduced to their net effect per file, see {@link ChangeCoalescer} */
+    protected boolean coalesce = false;
+
+    /** Default: DROP_OLDEST. What to do when the queue of a matcher is full. */
+    protected OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+
+    /** counters for full queues */
+    protected final QueueStats queueStats = new QueueStats();
+
+    /** matchers that dropped changes and need a {@link FileChangeType#OVERFLOW} delivered, guarded by {@link #takeLock} */
+    protected final Set<FileMatcher<T>> rescanNeeded = new LinkedHashSet<>();
+
+    /** changes found by {@link TreeSnapshot#restore(FileMatcher)}, kept outside the bounded queues until taken, guarded by {@link #takeLock} */
+    protected final List<FileChangeEntry<T>> restored = new ArrayList<>();
+
+    /** spilled changes by matcher, see {@link OverflowPolicy#SPILL} */
+    protected final Map<FileMatcher<T>, SpillFile<T>> spills = new ConcurrentHashMap<>();
+
+    /** Default: java.io.tmpdir. Folder for {@link OverflowPolicy#SPILL} files */
+    protected Path spillFolder = Paths.get(System.getProperty("java.io.tmpdir"));
+
+    /** Default: -1 (disabled). Delay in ms for {@link OverflowRecovery} rescan after overflow */
+    protected long overflowRecoveryDelay = -1;
+    protected OverflowRecovery<T> overflowRecovery;
+
+    /** listeners for changes of all matchers */
+    protected final List<Subscription<T>> subscriptions = new CopyOnWriteArrayList<>();
+
+    /** listeners for changes of a single matcher */
+    protected final Map<FileMatcher<T>, List<Subscription<T>>> matcherSubscriptions = new ConcurrentHashMap<>();
+
+    /** timer for {@link Subscription} debounce, created with the first subscription */
+    protected ScheduledExecutorService debounceTimer;
+
+    /** Default: null (platform threads). Factory for threads started by the watcher */
+    protected ThreadFactory threadFactory;
+
+    /** Default: null. Snapshot of matched files kept between restarts, see {@link #setSnapshotFile(Path)} */
+    protected TreeSnapshot<T> snapshot;
+
+    /** polls matchers with {@link WatchMode#POLL}, created in {@link #init(boolean)} if there are any */
+    protected PollingWatcher<T> poller;
+    /** Default: 1000. (ms) poll interval after changes were found */
+    protected long pollInterval = 1000;
+    /** Default: 10000. (ms) longest poll interval, reached after some cycles without changes */
+    protected long pollMaxInterval = 10000;
+    /** Default: 4. Threads doing stat calls while polling */
+    protected int pollParallelism = 4;
+    /** Default: 10000. Max file stat calls per poll cycle for folders that did not change */
+    protected int pollStatBudget = 10000;
+    /** Default: 100000. Max stat calls per poll cycle for folder modification times and listings of changed folders */
+    protected int pollFolderBudget = 100000;
+    protected final PollStats pollStats = new PollStats();
+    /** Default: 8192. Max folders with a native watch for {@link WatchMode#HYBRID} matchers */
+    protected int watchBudget = 8192;
+    /** Default: 60000. (ms) a watched folder idle this long can be moved back to polling when the budget is used up */
+    protected long watchMinIdle = 60000;
+
+    /** Default: null (OS default). Creates the watch service used for native events */
+    protected WatchServiceFactory watchServiceFactory;
+    /** Default: DEFAULT. Source of native events, see {@link #setWatchBackend(WatchBackend)} */
+    protected WatchBackend watchBackend = WatchBackend.DEFAULT;
+    /** reads native events when {@link WatchBackend#INOTIFY} is used */
+    protected InotifyWatcher<T> inotify;
+
+    /** Default: null. Content hashes kept between restarts, see {@link #setHashCacheFile(Path)} */
+    protected HashCache hashCache;
 	
     /**
      * Add a {@link FileMatcher} that will be used to watch files/folders
@@ -55,6 +145,7 @@ public class FolderWatcher<T> implements AutoCloseable, IFolderWatcher<T> {
     	
     /**
      *  Takes changed files and returns when something is changed, but waits until no files change for some time (burstDelay parameter).<br> 
+     *  Every new change moves the deadline, so the batch is returned {@code burstDelay} after the last change.<br>
      *  Returns null if interrupted, even if some files were changed when interrupt happened.
      *  
      * @param   burstDelay
@@ -65,15 +156,35 @@ public class FolderWatcher<T> implements AutoCloseable, IFolderWatcher<T> {
 	@Override
 	public Collection<FileChangeEntry<T>> takeBatch(long burstDelay) {
 		try {
-			Collection<FileChangeEntry<T>> batch = take();
-
-			Collection<FileChangeEntry<T>> changed = null;
-			while(!Thread.interrupted()){
-				changed = poll(burstDelay, TimeUnit.MILLISECONDS);
-
-				if(changed == null && batch.size() >0) return batch;
+			long quiet = TimeUnit.MILLISECONDS.toNanos(burstDelay);
+			synchronized (takeLock) {
+				while(true) {
+					List<FileChangeEntry<T>> batch = take();
+					ChangeCoalescer<T> coalescer = null;
+					if(coalesce) {
+						coalescer = new ChangeCoalescer<>();
+						coalescer.addAll(batch);
+					}
+					long deadline = System.nanoTime() + quiet;
+					long remaining;
+					while((remaining = deadline - System.nanoTime()) > 0){
+						TimeUnit.NANOSECONDS.timedWait(takeLock, remaining);
+						if(ready.isEmpty()) continue;
+	
+						List<FileChangeEntry<T>> changed = getChanges();
+						if(changed.size() > 0) {
+							if(coalescer != null) 
+								coalescer.addAll(changed);
+							else
+								batch.addAll(changed);
+							deadline = System.nanoTime() + quiet;
+						}
+					}
+					if(coalescer != null) batch = coalescer.getChanges();
 
-				if(changed != null) batch.addAll(changed);
+					// with coalescing everything can cancel out, then wait for the next batch
+					if(batch.size() > 0) return batch;
+				}
 			}
 		} catch (InterruptedException e) {
 			// ignore the exception, and return null, thus notifying the caller that interrupt happened
@@ -88,16 +199,21 @@ public class FolderWatcher<T> implements AutoCloseable, IFolderWatcher<T> {
      * @return  changed files
      * @throws InterruptedException when the Thread is interrupted
 	 * */
-	public Collection<FileChangeEntry<T>> take() throws InterruptedException {
+	public List<FileChangeEntry<T>> take() throws InterruptedException {
 		synchronized (takeLock) {
-			takeLock.wait();
-			return getChanges();
+			List<FileChangeEntry<T>> files = getChanges();
+			while(files.size() == 0) {
+				takeLock.wait();
+				files = getChanges();
+			}
+			return files;
 		}
 	}
 
 	
     /**
-     *  Takes changed files waiting the desired time first, and returns {@code null} if none are changed yet.
+     *  Takes changed files, waiting up to the desired time for them, and returns {@code null} if none are changed yet.
+     *  Returns as soon as changes are available.
      *  
      * @param   timeout
      *          how to wait before giving up, in units of unit
@@ -109,20 +225,56 @@ public class FolderWatcher<T> implements AutoCloseable, IFolderWatcher<T> {
      * @throws InterruptedException because null means no results yet, and can not be used to differentiate when the Thread was interrupted
      *  */
 	public Collection<FileChangeEntry<T>> poll(long timeout, TimeUnit unit) throws InterruptedException {
-		Thread.sleep(unit.toMillis(timeout));
-		List<FileChangeEntry<T>> files = getChanges();		
-		return files.size() == 0 ? null:files;
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		synchronized (takeLock) {
+			List<FileChangeEntry<T>> files = getChanges();
+			long remaining;
+			while(files.size() == 0 && (remaining = deadline - System.nanoTime()) > 0) {
+				TimeUnit.NANOSECONDS.timedWait(takeLock, remaining);
+				files = getChanges();
+			}
+			return files.size() == 0 ? null:files;
+		}
+	}
+
+	/** Matched files of the matcher in storage order, copied while holding the matcher lock unless already immutable */
+	static <T> Collection<Path> matchedCopy(FileMatcher<T> m){
+		Collection<Path> matched = m.getMatched();
+		if(matched instanceof PathSnapshot) return matched;
+		synchronized (m) {
+			return new ArrayList<>(matched);
+		}
 	}
 
+	/** Drain queues of matchers that have changes. Must be called while holding {@link #takeLock}. */
 	private List<FileChangeEntry<T>> getChanges() {
-		List<FileChangeEntry<T>> files = new ArrayList<>();
-		for(FileMatcher<T> m:matchers) {
+		List<FileChangeEntry<T>> files = drain();
+		return coalesce && files.size() > 1 ? ChangeCoalescer.coalesce(files) : files;
+	}
+
+	private List<FileChangeEntry<T>> drain() {
+		List<FileChangeEntry<T>> files = new ArrayList<>(restored);
+		restored.clear();
+		for(FileMatcher<T> m:ready) {
 			FileChangeEntry<T> entry = m.getQ().poll();
 			while(entry != null) {
 				files.add(entry);
 				entry = m.getQ().poll();
 			}
+			SpillFile<T> spill = spills.get(m);
+			if(spill != null) try {
+				spill.drainTo(files);
+			} catch (IOException e) {
+				Main.logError("Unable to read spilled changes, scan "+m.getRootPath()+" again", e);
+				rescanNeeded.add(m);
+			}
+		}
+		for(FileMatcher<T> m:rescanNeeded) {
+			files.add(new FileChangeEntry<T>(Paths.get(""), FileChangeType.OVERFLOW, m));
+			queueStats.rescans.incrementAndGet();
 		}
+		rescanNeeded.clear();
+		ready.clear();
 		return files;
 	}
 	
@@ -153,7 +305,7 @@ public class FolderWatcher<T> implements AutoCloseable, IFolderWatcher<T> {
 	public Collection<FileChangeEntry<T>> getMatched(){
 		Collection<FileChangeEntry<T>> matched = new ArrayList<>();
 		for(FileMatcher<T> m:matchers){
-			for(Path p: m.getMatched()){
+			for(Path p: matchedCopy(m)){
 				matched.add(new FileChangeEntry<T>(p, FileChangeType.MODIFY, m));
 			}
 		}
@@ -165,7 +317,7 @@ public class FolderWatcher<T> implements AutoCloseable, IFolderWatcher<T> {
 	public Collection<Path> getMatchedFiles(){
 		Collection<Path> matched = new ArrayList<>();
 		for(FileMatcher<T> m:matchers){
-			matched.addAll(m.getMatched());
+			matched.addAll(matchedCopy(m));
 		}
 		return matched;
 	}
@@ -176,7 +328,7 @@ public class FolderWatcher<T> implements AutoCloseable, IFolderWatcher<T> {
 	public Set<Path> getMatchedFilesUnique(){
 		Set<Path> matched = new HashSet<>();
 		for(FileMatcher<T> m:matchers){
-			matched.addAll(m.getMatched());
+			matched.addAll(matchedCopy(m));
 		}
 		return matched;
 	}
@@ -193,84 +345,381 @@ public class FolderWatcher<T> implements AutoCloseable, IFolderWatcher<T> {
 	@Override
 	public void init(final boolean registerForWatch){
 
-		List<Path> paths = new ArrayList<Path>();
 		for(FileMatcher<T> matcher:matchers){
-			paths.add(matcher.getRootPath());
-			fillMatcher(matcher, registerForWatch);
+			// changes are queued from here on, so the queue can not be replaced any more
+			if(matcher instanceof FileMatchGlob) ((FileMatchGlob<T>) matcher).started = true;
 		}
 
-		
+		if(snapshot != null) {
+			snapshot.load();
+			for(FileMatcher<T> matcher:matchers){
+				restored(matcher, snapshot.restore(matcher));
+			}
+		}else if(scanParallelism > 1) {
+			ParallelScan.fill(matchers, scanParallelism);
+		}else {
+			for(FileMatcher<T> matcher:matchers){
+				fillMatcher(matcher);
+			}
+		}
+
+		if(registerForWatch) startWatching();
 	}
-	
-	protected void fillMatcher(final FileMatcher<T> matcher, boolean registerForWatch){
-		fillMatcher(matcher);
-		if(registerForWatch) {
-			try {
-				FileHasher fileHasher = FileHasher.LAST_MODIFIED_TIME;
-				Path rootPath = matcher.getRootPath().toAbsolutePath().normalize();
-				DirectoryWatcher watcher = builder 
-						.path(rootPath) // or use paths(directoriesToWatch)
-						.listener(new DirectoryChangeListener() {
-							@Override
-							public void onEvent(DirectoryChangeEvent event) throws IOException {
-								try {				
-									Path path = event.path();
-									if(path == null) return;
-									path = path.toAbsolutePath();
-									
-									Path filename = rootPath.relativize(path);
-									
-									if(!matcher.offer(filename)) return;
-									
-									synchronized (takeLock) {								
-										switch (event.eventType()) {
-										case CREATE: /* file created */;
-										matcher.getQ().add(new FileChangeEntry<T>(filename, FileChangeType.CREATE, matcher));
-										System.out.println("Create: "+path);
-										break;
-										case MODIFY: /* file modified */; 
-										matcher.getQ().add(new FileChangeEntry<T>(filename, FileChangeType.MODIFY, matcher));
-										System.out.println("Modify: "+path);
-										break;
-										case DELETE: /* file deleted */; 
-										matcher.getQ().add(new FileChangeEntry<T>(filename, FileChangeType.DELETE, matcher));
-										System.out.println("Delete: "+path);
-										break;
-										case OVERFLOW: 
-											Main.logWarn("Overflow while listening "+rootPath.toAbsolutePath());
-											break;
-										}
-										
-										takeLock.notifyAll();
-									}
-								} catch (Exception e) {
-									e.printStackTrace();
+
+	public int getScanParallelism() {
+		return scanParallelism;
+	}
+
+	/**
+	 * Scan matchers in parallel during {@link #init(boolean)} using {@link ParallelScan}. Helps with very large trees
+	 * on fast disks. Values below 2 use the sequential walk (default).
+	 * */
+	public void setScanParallelism(int scanParallelism) {
+		this.scanParallelism = scanParallelism;
+	}
+
+	public long getOverflowRecoveryDelay() {
+		return overflowRecoveryDelay;
+	}
+
+	/**
+	 * Enable automatic rescan when the watch service reports an overflow (lost events). Affected matchers are rescanned 
+	 * {@code delay} ms after the first overflow and synthetic changes are queued to bring them in sync with the disk.
+	 * Overflows until then are merged into that single rescan. Negative value disables it (default). See {@link OverflowRecovery}.
+	 * */
+	public void setOverflowRecoveryDelay(long delay) {
+		this.overflowRecoveryDelay = delay;
+	}
+
+	public boolean isCoalesce() {
+		return coalesce;
+	}
+
+	/**
+	 * Reduce changes returned by take methods to one per file and matcher, with the net effect of all changes
+	 * (create+delete is nothing, delete+create is modify). See {@link ChangeCoalescer}. 
+	 * */
+	public void setCoalesce(boolean coalesce) {
+		this.coalesce = coalesce;
+	}
+
+	public Path getSnapshotFile() {
+		return snapshot == null ? null : snapshot.getFile();
+	}
+
+	/**
+	 * Keep a {@link TreeSnapshot} of matched files in this file. On {@link #init(boolean)} changes made since the
+	 * snapshot was saved are queued as changes, and on {@link #close()} the snapshot is saved again.
+	 * */
+	public void setSnapshotFile(Path file) {
+		this.snapshot = file == null ? null : new TreeSnapshot<T>(file);
+	}
+
+	public long getPollInterval() {
+		return pollInterval;
+	}
+
+	public long getPollMaxInterval() {
+		return pollMaxInterval;
+	}
+
+	/**
+	 * Interval for matchers with {@link WatchMode#POLL}. After a cycle with changes the interval is {@code min},
+	 * and it grows by half after each cycle without changes, up to {@code max}.
+	 * */
+	public void setPollInterval(long min, long max) {
+		this.pollInterval = min;
+		this.pollMaxInterval = max;
+	}
+
+	public int getPollParallelism() {
+		return pollParallelism;
+	}
+
+	public void setPollParallelism(int pollParallelism) {
+		this.pollParallelism = pollParallelism;
+	}
+
+	public int getPollStatBudget() {
+		return pollStatBudget;
+	}
+
+	/**
+	 * Limit file stat calls per poll cycle for folders that did not change. Files written in place do not change
+	 * the folder modification time, and are found when their folder comes up, so a lower budget means less I/O
+	 * per cycle, but slower detection of such changes in large trees.
+	 * */
+	public void setPollStatBudget(int pollStatBudget) {
+		this.pollStatBudget = pollStatBudget;
+	}
+
+	public int getPollFolderBudget() {
+		return pollFolderBudget;
+	}
+
+	/**
+	 * Limit stat calls per poll cycle for folder modification times and listings of changed folders. In trees with
+	 * more folders a cycle checks only part of them and the next cycle continues, so changes are found later, but
+	 * the I/O of one cycle stays bounded.
+	 * */
+	public void setPollFolderBudget(int pollFolderBudget) {
+		this.pollFolderBudget = pollFolderBudget;
+	}
+
+	public int getWatchBudget() {
+		return watchBudget;
+	}
+
+	/**
+	 * Max folders with a native watch for {@link WatchMode#HYBRID} matchers. Keep it below the OS limit
+	 * ({@code fs.inotify.max_user_watches} on Linux) minus watches used by {@link WatchMode#NATIVE} matchers.
+	 * */
+	public void setWatchBudget(int watchBudget) {
+		this.watchBudget = watchBudget;
+	}
+
+	public long getWatchMinIdle() {
+		return watchMinIdle;
+	}
+
+	/** (ms) a watched folder idle this long can be moved back to polling when the watch budget is used up */
+	public void setWatchMinIdle(long watchMinIdle) {
+		this.watchMinIdle = watchMinIdle;
+	}
+
+	/** Poll counters, including current watched and polled folder counts for {@link WatchMode#HYBRID} */
+	public PollStats getPollStats() {
+		return pollStats;
+	}
+
+	public WatchServiceFactory getWatchServiceFactory() {
+		return watchServiceFactory;
+	}
+
+	/**
+	 * Replace the OS default watch service (JDK one, or {@link MacOSXListeningWatchService} on Mac).
+	 * Must be set before {@link #init(boolean)}.
+	 * */
+	public void setWatchServiceFactory(WatchServiceFactory watchServiceFactory) {
+		this.watchServiceFactory = watchServiceFactory;
+	}
+
+	public WatchBackend getWatchBackend() {
+		return watchBackend;
+	}
+
+	/**
+	 * Source of native events. {@link WatchBackend#INOTIFY} reads inotify directly on Linux, with less overhead per event
+	 * than the JDK watch service, but modifications are reported when a written file is closed, and {@link FileHashing}
+	 * is not applied. On other systems, or if the native calls are not available, {@link WatchBackend#DEFAULT} is used.
+	 * Must be set before {@link #init(boolean)}.
+	 * */
+	public void setWatchBackend(WatchBackend watchBackend) {
+		this.watchBackend = watchBackend;
+	}
+
+	public Path getHashCacheFile() {
+		return hashCache == null ? null : hashCache.getFile();
+	}
+
+	/**
+	 * Keep content hashes ({@link FileHashing#CONTENT}) in this file, so on restart only files with changed
+	 * size, modification time or file key are read again. Saved on {@link #close()}.
+	 * */
+	public void setHashCacheFile(Path file) {
+		this.hashCache = file == null ? null : new HashCache(file);
+	}
+
+	/** Save the hash cache now. It is also saved on {@link #close()}. */
+	public void saveHashCache() {
+		// not loaded if watching did not start, and saving would drop the cached hashes
+		if(hashCache == null || watcher == null) return;
+		try {
+			hashCache.save();
+		} catch (Exception e) {
+			Main.logError("Unable to save hash cache "+hashCache.getFile(), e);
+		}
+	}
+
+	/** Save the snapshot now. It is also saved on {@link #close()}. */
+	public void saveSnapshot() {
+		if(snapshot == null) return;
+		try {
+			snapshot.save(matchers);
+		} catch (Exception e) {
+			Main.logError("Unable to save snapshot "+snapshot.getFile(), e);
+		}
+	}
+
+	/**
+	 * Start a single shared {@link DirectoryWatcher} for all matchers. Each physical folder is registered once,
+	 * and events are routed to interested matchers using {@link RootIndex}.
+	 * */
+	protected void startWatching(){
+		List<FileMatcher<T>> nativeMatchers = new ArrayList<>();
+		List<FileMatcher<T>> polled = new ArrayList<>();
+		for(FileMatcher<T> matcher:matchers) {
+			if(matcher.getWatchMode() != WatchMode.NATIVE) {
+				polled.add(matcher);
+			}else {
+				nativeMatchers.add(matcher);
+			}
+		}
+		if(!polled.isEmpty()) {
+			poller = new PollingWatcher<>(this, polled, pollInterval, pollMaxInterval, pollParallelism, pollStatBudget, pollFolderBudget, pollStats);
+			for(FileMatcher<T> matcher:polled) {
+				if(matcher.getWatchMode() != WatchMode.HYBRID) continue;
+				try {
+					// plain folder watches, Path.register does not work with services from osDefaultWatchService on mac or the factory
+					poller.enableHybrid(FileSystems.getDefault().newWatchService(), watchBudget, watchMinIdle);
+				} catch (IOException e) {
+					Main.logError("Unable to create watch service, polling only "+e.getMessage(), e);
+				}
+				break;
+			}
+			poller.start();
+		}
+
+		rootIndex = new RootIndex<>(nativeMatchers);
+		if(overflowRecoveryDelay >= 0) overflowRecovery = new OverflowRecovery<>(this, overflowRecoveryDelay);
+		final List<Path> roots = rootIndex.getWatchRoots();
+		if(roots.isEmpty()) return;
+
+		if(watchBackend == WatchBackend.INOTIFY) {
+			if(InotifyWatcher.isAvailable()) {
+				try {
+					inotify = new InotifyWatcher<>(this, rootIndex);
+					inotify.start();
+					return;
+				} catch (IOException e) {
+					Main.logError("Unable to start inotify, using default watch service "+e.getMessage(), e);
+				}
+			}else {
+				if(Main.isWarnEnabled()) Main.logWarn("inotify is not available, using default watch service");
+			}
+		}
+
+		try {
+			// only files accepted by a matcher are hashed, see FileMatcher.getHashing()
+			if(hashCache != null) hashCache.load();
+			FileHasher fileHasher = new SelectiveHasher<>(rootIndex, hashCache);
+			watcher = DirectoryWatcher.builder()
+					.paths(roots)
+					.listener(new DirectoryChangeListener() {
+						// listener is called only from the watch thread, so the list can be reused
+						final List<FileMatcher<T>> routed = new ArrayList<>();
+
+						@Override
+						public void onEvent(DirectoryChangeEvent event) throws IOException {
+							try {
+								Path path = event.path();
+								FileChangeType type = FileChangeType.fromEventType(event.eventType());
+								if(type == null) {
+									overflow(path);
+									return;
 								}
+								if(path == null) return;
+								path = path.toAbsolutePath();
+
+								routed.clear();
+								rootIndex.collect(path, routed);
+								if(routed.isEmpty()) return;
+
+								dispatch(path, type, routed);
+							} catch (Exception e) {
+								e.printStackTrace();
 							}
-						})
-						.watchService(osDefaultWatchService(fileHasher))
-						.fileHasher(fileHasher)
-						// .logger(logger) // defaults to LoggerFactory.getLogger(DirectoryWatcher.class)
-						// .watchService(watchService) // defaults based on OS to either JVM WatchService or the JNA macOS WatchService
-						.build();
-
-				matcher.setWatcher(watcher);
-				//watcher.watchAsync();
-				new Thread(new Runnable() {
-					public void run() {
-						System.err.println("Watch async "+rootPath);
+						}
+					})
+					.watchService(osDefaultWatchService(fileHasher))
+					.fileHasher(fileHasher)
+					.build();
+
+			for(FileMatcher<T> matcher:matchers) matcher.setWatcher(watcher);
+
+			newThread(new Runnable() {
+				public void run() {
+					if(Main.isInfoEnabled()) Main.logInfo("Watch async "+roots);
+					try {
 						watcher.watch();
-						System.err.println("Watch async "+rootPath+" DONE");
+					} catch (ClosedWatchServiceException e) {
+						// closed via close()
 					}
-				},"watch "+rootPath).start();
-			} catch (IOException e) {
-				Main.logError(e.getMessage(), e);
+					if(Main.isInfoEnabled()) Main.logInfo("Watch async "+roots+" DONE");
+				}
+			},"watch "+roots.size()+" roots").start();
+		} catch (IOException e) {
+			Main.logError(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Handle lost events reported by the watch service. Schedules {@link OverflowRecovery} for affected matchers if enabled.
+	 * 
+	 * @param path folder where events were lost, or null if unknown (then all matchers are affected)
+	 * */
+	protected void overflow(Path path){
+		Main.logWarn("Overflow while listening "+(path == null ? rootIndex.getWatchRoots() : path));
+		if(overflowRecovery == null) return;
+
+		List<FileMatcher<T>> affected = new ArrayList<>();
+		if(path == null) {
+			affected.addAll(matchers);
+		}else {
+			path = path.toAbsolutePath().normalize();
+			rootIndex.collect(path, affected);
+			for(FileMatcher<T> m:matchers) {
+				if(RootIndex.absRoot(m).startsWith(path)) affected.add(m);
 			}
-			
+		}
+		overflowRecovery.overflow(affected);
+	}
+
+	/**
+	 * Offer the changed file to each of the matchers the event was routed to, and queue a change for those accepting it.
+	 * 
+	 * @param path absolute path of the changed file
+	 * @param type type of change
+	 * @param routed matchers whose root contains the path
+	 * */
+	protected void dispatch(Path path, FileChangeType type, List<FileMatcher<T>> routed){
+		for(int i=0; i<routed.size(); i++) {
+			FileMatcher<T> matcher = routed.get(i);
+			Path filename = matcher.relativize(path);
+			if(type == FileChangeType.DELETE) {
+				deleted(matcher, filename);
+				continue;
+			}
+			// synchronized as matcher can also be updated by OverflowRecovery
+			synchronized (matcher) {
+				if(!matcher.offer(filename)) continue;
+			}
+			if(overflowRecovery != null) overflowRecovery.eventDispatched();
+
+			enqueue(new FileChangeEntry<T>(filename, type, matcher));
+			if(Main.isInfoEnabled()) Main.logInfo(type+": "+path);
 		}
 	}
 	
+	/**
+	 * Remove the deleted path from the matcher, and if it was a folder everything under it, with a DELETE 
+	 * for each matched file that is gone.
+	 * */
+	protected void deleted(FileMatcher<T> matcher, Path filename){
+		Collection<Path> removed;
+		synchronized (matcher) {
+			removed = matcher.dirDeleted(filename);
+			matcher.fileDeleted(filename);
+		}
+		if(removed.isEmpty()) return;
+		if(overflowRecovery != null) overflowRecovery.eventDispatched();
+
+		for(Path file:removed) enqueue(new FileChangeEntry<T>(file, FileChangeType.DELETE, matcher));
+		if(Main.isInfoEnabled()) Main.logInfo("DELETE: "+matcher.getRootPath().resolve(filename)+(removed.size() > 1 ? " ("+removed.size()+" files)" : ""));
+	}
+
     private WatchService osDefaultWatchService(FileHasher fileHasher) throws IOException {
+        if(watchServiceFactory != null) return watchServiceFactory.newWatchService(fileHasher);
         boolean isMac = System.getProperty("os.name").toLowerCase().contains("mac");
         if (isMac) {
               return new MacOSXListeningWatchService(
@@ -295,7 +744,6 @@ public class FolderWatcher<T> implements AutoCloseable, IFolderWatcher<T> {
 
 		try {
 			
-			final boolean recursive = matcher.isRecursive();
 			final Path rootPath = matcher.getRootPath();
 			matcher.setCollectMatched(true);
 	
@@ -308,8 +756,8 @@ public class FolderWatcher<T> implements AutoCloseable, IFolderWatcher<T> {
 				
 				@Override
 				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-					return (recursive && !matcher.isExcluded(dir)) || dir.equals(rootPath) ? 
-							super.preVisitDirectory(dir, attrs): FileVisitResult.SKIP_SUBTREE;
+					if(dir.equals(rootPath)) return FileVisitResult.CONTINUE;
+					return isDirScanned(matcher, dir) ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
 				}
 
 				@Override
@@ -324,14 +772,295 @@ public class FolderWatcher<T> implements AutoCloseable, IFolderWatcher<T> {
 	}	
 	
 	
+	/** 
+	 * Add the change to the queue of its matcher, and wake up threads waiting for changes.
+	 * If the queue is full, {@link #overflowPolicy} decides what happens. 
+	 * */
+	protected void enqueue(FileChangeEntry<T> change){
+		FileMatcher<T> matcher = change.getMatcher();
+		if(publish(change)) return;
+
+		ArrayBlockingQueue<FileChangeEntry<T>> q = matcher.getQ();
+		SpillFile<T> spill = spills.get(matcher);
+
+		if((spill == null || spill.size() == 0) && q.offer(change)) {
+			signal(matcher);
+			return;
+		}
+
+		queueStats.overflows.incrementAndGet();
+		try {
+			switch (overflowPolicy) {
+			case BLOCK:
+				long start = System.nanoTime();
+				// consumer must be able to see the matcher while we wait
+				signal(matcher);
+				q.put(change);
+				queueStats.blockedNanos.addAndGet(System.nanoTime() - start);
+				break;
+			case DROP_OLDEST:
+				while(!q.offer(change)) {
+					if(q.poll() != null) queueStats.dropped.incrementAndGet();
+				}
+				break;
+			case RESCAN:
+				queueStats.dropped.incrementAndGet();
+				synchronized (takeLock) {
+					rescanNeeded.add(matcher);
+				}
+				break;
+			case SPILL:
+				if(spill == null) {
+					// another thread may be spilling for the same matcher
+					spill = spills.computeIfAbsent(matcher, new Function<FileMatcher<T>, SpillFile<T>>() {
+						@Override
+						public SpillFile<T> apply(FileMatcher<T> m) {
+							return new SpillFile<>(m, spillFolder);
+						}
+					});
+				}
+				spill.write(change);
+				queueStats.spilled.incrementAndGet();
+				break;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		} catch (IOException e) {
+			Main.logError("Unable to spill change, scan "+matcher.getRootPath()+" again", e);
+			synchronized (takeLock) {
+				rescanNeeded.add(matcher);
+			}
+		}
+		signal(matcher);
+	}
+
+	/**
+	 * Deliver changes found while the process was down. Nothing takes changes yet during {@link #init(boolean)},
+	 * so they do not go through the bounded queue, where the {@link #overflowPolicy} would drop them or block forever.
+	 * They are all returned by the first take/poll.
+	 * */
+	protected void restored(FileMatcher<T> matcher, List<FileChangeEntry<T>> changes){
+		List<FileChangeEntry<T>> toQueue = new ArrayList<>();
+		for(FileChangeEntry<T> change:changes) {
+			if(!publish(change)) toQueue.add(change);
+		}
+		if(toQueue.isEmpty()) return;
+		synchronized (takeLock) {
+			restored.addAll(toQueue);
+			signal(matcher);
+		}
+	}
+
+	/** 
+	 * Give the change to subscribed listeners.
+	 * 
+	 * @return true if there were listeners for the change, and it should not go to the queue
+	 * */
+	protected boolean publish(FileChangeEntry<T> change){
+		boolean published = false;
+		List<Subscription<T>> forMatcher = matcherSubscriptions.get(change.getMatcher());
+		if(forMatcher != null) {
+			for(Subscription<T> s:forMatcher) {
+				s.add(change);
+				published = true;
+			}
+		}
+		for(Subscription<T> s:subscriptions) {
+			s.add(change);
+			published = true;
+		}
+		return published;
+	}
+
+	/**
+	 * Subscribe a listener for changes of all matchers. Listener is called on the executor with batches of changes,
+	 * after there were no changes for {@code debounce} ms. Changes delivered to listeners are not put in the queue
+	 * for take/poll methods, so use either listeners or take/poll for a matcher.
+	 * 
+	 * @param listener listener to call
+	 * @param executor executor to call the listener on
+	 * @param debounce (ms) how long to wait for more changes to pickup burst changes in a single batch
+	 * @return subscription, close it to stop getting changes
+	 * */
+	public Subscription<T> subscribe(ChangeListener<T> listener, Executor executor, long debounce){
+		return register(new Subscription<>(this, null, listener, executor, debounce, getDebounceTimer()));
+	}
+
+	/**
+	 * Subscribe a listener for changes of a single matcher. Same as {@link #subscribe(ChangeListener, Executor, long)}
+	 * but only for changes from the matcher.
+	 * */
+	public Subscription<T> subscribe(FileMatcher<T> matcher, ChangeListener<T> listener, Executor executor, long debounce){
+		return register(new Subscription<>(this, matcher, listener, executor, debounce, getDebounceTimer()));
+	}
+
+	/**
+	 * Publisher of change batches for all matchers, with demand based backpressure. See {@link BatchPublisher}.
+	 * 
+	 * @param executor executor to call the subscribers on
+	 * @param debounce (ms) how long to wait for more changes to pickup burst changes in a single batch
+	 * */
+	public BatchPublisher<T> publisher(Executor executor, long debounce){
+		return new BatchPublisher<>(this, null, executor, debounce);
+	}
+
+	/** Same as {@link #publisher(Executor, long)} but only for changes from the matcher. */
+	public BatchPublisher<T> publisher(FileMatcher<T> matcher, Executor executor, long debounce){
+		return new BatchPublisher<>(this, matcher, executor, debounce);
+	}
+
+	protected <S extends Subscription<T>> S register(S subscription){
+		FileMatcher<T> matcher = subscription.getMatcher();
+		if(matcher == null) {
+			subscriptions.add(subscription);
+			return subscription;
+		}
+		synchronized (matcherSubscriptions) {
+			List<Subscription<T>> list = matcherSubscriptions.get(matcher);
+			if(list == null) {
+				list = new CopyOnWriteArrayList<>();
+				matcherSubscriptions.put(matcher, list);
+			}
+			list.add(subscription);
+		}
+		return subscription;
+	}
+
+	protected void unsubscribe(Subscription<T> subscription){
+		if(subscription.getMatcher() == null) {
+			subscriptions.remove(subscription);
+			return;
+		}
+		synchronized (matcherSubscriptions) {
+			List<Subscription<T>> list = matcherSubscriptions.get(subscription.getMatcher());
+			if(list != null) {
+				list.remove(subscription);
+				if(list.isEmpty()) matcherSubscriptions.remove(subscription.getMatcher());
+			}
+		}
+	}
+
+	protected synchronized ScheduledExecutorService getDebounceTimer(){
+		if(debounceTimer == null) {
+			debounceTimer = Executors.newSingleThreadScheduledExecutor(daemonFactory("watch debounce"));
+		}
+		return debounceTimer;
+	}
+
+	/** 
+	 * Create a thread using {@link #threadFactory} if defined.
+	 * */
+	protected Thread newThread(Runnable runnable, String name){
+		if(threadFactory == null) return new Thread(runnable, name);
+		Thread thread = threadFactory.newThread(runnable);
+		thread.setName(name);
+		return thread;
+	}
+
+	/** Factory for daemon helper threads, that uses {@link #newThread(Runnable, String)} */
+	protected ThreadFactory daemonFactory(final String name){
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = FolderWatcher.this.newThread(r, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	public ThreadFactory getThreadFactory() {
+		return threadFactory;
+	}
+
+	/**
+	 * Factory for threads started by the watcher (watch loop, debounce timer, overflow recovery).
+	 * Default null uses platform threads. Must be set before {@link #init(boolean)}.
+	 * */
+	public void setThreadFactory(ThreadFactory threadFactory) {
+		this.threadFactory = threadFactory;
+	}
+
+	/**
+	 * Use virtual threads when running on Java 21+ (see {@link WatchUtil#virtualThreadFactory()}).
+	 * 
+	 * @return false if virtual threads are not available, and platform threads will be used
+	 * */
+	public boolean useVirtualThreads() {
+		ThreadFactory factory = WatchUtil.virtualThreadFactory();
+		if(factory == null) {
+			Main.logWarn("Virtual threads are not available in Java "+System.getProperty("java.version")+", using platform threads");
+			return false;
+		}
+		threadFactory = factory;
+		return true;
+	}
+
+	/** Mark matcher as having changes, and wake up threads waiting for them */
+	protected void signal(FileMatcher<T> matcher){
+		synchronized (takeLock) {
+			ready.add(matcher);
+			takeLock.notifyAll();
+		}
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/** 
+	 * What to do when the queue of a matcher is full (default {@link OverflowPolicy#DROP_OLDEST}). 
+	 * Queue capacity can be changed with {@link FileMatchGlob#setQueueCapacity(int)}.
+	 * */
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	/** Counters for full queues, per {@link OverflowPolicy} */
+	public QueueStats getQueueStats() {
+		return queueStats;
+	}
+
+	public Path getSpillFolder() {
+		return spillFolder;
+	}
+
+	public void setSpillFolder(Path spillFolder) {
+		this.spillFolder = spillFolder;
+	}
+
+	/**
+	 * Check if scan should go into the sub-folder. Used by all scan implementations so they find the same files.
+	 * 
+	 * @param matcher the matcher being filled
+	 * @param dir sub-folder as found by the scan (not relativized)
+	 * */
+	public static boolean isDirScanned(FileMatcher<?> matcher, Path dir) {
+		return matcher.isRecursive() && !matcher.isExcluded(dir) && matcher.isDirRelevant(matcher.relativize(dir));
+	}
+	
 	@Override
 	public void close() {
 		try {
-			for(FileMatcher<T> m:matchers) {				
-				if(m.getWatcher() != null) m.getWatcher().close();
-			}
+			if(watcher != null) watcher.close();
 		} catch (IOException e) {
 			Main.logError(e.getMessage(), e);
 		}
+		if(inotify != null) inotify.close();
+		if(overflowRecovery != null) overflowRecovery.close();
+		if(poller != null) poller.close();
+		for(Subscription<T> s:subscriptions) s.watcherClosed();
+		for(List<Subscription<T>> list:matcherSubscriptions.values()) {
+			for(Subscription<T> s:list) s.watcherClosed();
+		}
+		subscriptions.clear();
+		matcherSubscriptions.clear();
+		synchronized (this) {
+			if(debounceTimer != null) debounceTimer.shutdown();
+		}
+		saveSnapshot();
+		saveHashCache();
+		for(SpillFile<T> spill:spills.values()) spill.delete();
 	}
 }
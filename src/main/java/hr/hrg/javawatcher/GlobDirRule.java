@@ -0,0 +1,102 @@
+package hr.hrg.javawatcher;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Folder part of an include glob. Used by {@link FileMatchGlob} to find folders that can not contain
+ * a match, so they can be skipped while scanning and left out when registering for watch.
+ * <p>
+ * For {@code src/*}{@code /styles/**}{@code /*.scss} the folder must start with {@code src/anything/styles}
+ * and the literal prefix is {@code src}. Rules this class can not analyse ({@code regex:}, and globs with
+ * {@code {}}, {@code []} or escapes before the first {@code **}) are treated as matching in any folder.
+ * </p>
+ * */
+public class GlobDirRule {
+
+	/** literal folder segments before the first {@code **}, null where the segment has wildcards */
+	protected final String[] literals;
+
+	/** matchers for folder segments that have wildcards, null where the segment is literal */
+	protected final PathMatcher[] segments;
+
+	/** if the rule has {@code **} so matches can be in any folder deeper than {@link #segments} */
+	protected final boolean deep;
+
+	/** if the rule could not be analysed, so any folder can contain a match */
+	protected final boolean any;
+
+	protected GlobDirRule(String[] literals, PathMatcher[] segments, boolean deep, boolean any) {
+		this.literals = literals;
+		this.segments = segments;
+		this.deep = deep;
+		this.any = any;
+	}
+
+	public static GlobDirRule parse(String rule) {
+		int starStar = rule.indexOf("**");
+		String head = starStar == -1 ? rule : rule.substring(0, starStar);
+		if(!CompiledGlobs.SUPPORTED || rule.startsWith("regex:") || rule.startsWith("/") || head.indexOf('{') != -1 || head.indexOf('[') != -1 || head.indexOf('\\') != -1) {
+			return new GlobDirRule(new String[0], new PathMatcher[0], true, true);
+		}
+
+		String[] parts = rule.split("/", -1);
+		List<String> dirs = new ArrayList<>();
+		boolean deep = false;
+		for(String part:parts) {
+			if(part.contains("**")) {
+				deep = true;
+				break;
+			}
+			dirs.add(part);
+		}
+		// without ** the last segment is the file name
+		if(!deep) dirs.remove(dirs.size()-1);
+
+		String[] literals = new String[dirs.size()];
+		PathMatcher[] segments = new PathMatcher[dirs.size()];
+		for(int i=0; i<literals.length; i++) {
+			String dir = dirs.get(i);
+			if(dir.equals("..")) return new GlobDirRule(new String[0], new PathMatcher[0], true, true);
+
+			if(CompiledGlobs.isLiteral(dir, 0, dir.length()))
+				literals[i] = dir;
+			else
+				segments[i] = FileSystems.getDefault().getPathMatcher("glob:"+dir);
+		}
+		return new GlobDirRule(literals, segments, deep, false);
+	}
+
+	/**
+	 * Check if the folder can contain a file matched by the rule.
+	 *
+	 * @param dir folder relative to the matcher root
+	 * */
+	public boolean canContain(Path dir) {
+		if(any) return true;
+		int depth = dir.toString().isEmpty() ? 0 : dir.getNameCount();
+		for(int i=0; i<depth; i++) {
+			if(i >= literals.length) return deep;
+			Path name = dir.getName(i);
+			if(literals[i] != null) {
+				if(!literals[i].equals(name.toString())) return false;
+			} else if(!segments[i].matches(name)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Leading literal folders of the rule ({@code src/main} for {@code src/main/*}{@code /*.java}), empty string if none. */
+	public String getLiteralPrefix() {
+		StringBuilder b = new StringBuilder();
+		for(int i=0; i<literals.length && literals[i] != null; i++) {
+			if(i > 0) b.append('/');
+			b.append(literals[i]);
+		}
+		return b.toString();
+	}
+}
@@ -7,6 +7,7 @@ import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 /** Combination of single {@link FolderWatcherOld} and a {@link FileMatchGlob} to simplify simple watch situations*/
 public class GlobWatcher<T> implements AutoCloseable{
@@ -25,6 +26,21 @@ public class GlobWatcher<T> implements AutoCloseable{
 	}
 
 	
+	public IFolderWatcher<T> getWatcher() {
+		return watcher;
+	}
+
+	/**
+	 * Publisher of change batches with demand based backpressure, see {@link BatchPublisher}.
+	 * 
+	 * @param executor executor to call the subscribers on
+	 * @param debounce (ms) how long to wait for more changes to pickup burst changes in a single batch
+	 * */
+	public BatchPublisher<T> publisher(Executor executor, long debounce) {
+		if(!(watcher instanceof FolderWatcher)) throw new UnsupportedOperationException("publisher needs a FolderWatcher, not "+watcher.getClass().getName());
+		return ((FolderWatcher<T>)watcher).publisher(matcher, executor, debounce);
+	}
+
 	public Path relativize(Path path) {
 		return matcher.relativize(path);
 	}
@@ -127,6 +143,56 @@ public class GlobWatcher<T> implements AutoCloseable{
 		matcher.setCollectMatched(collectMatched);
 	}
 
+	public boolean isCompiled() {
+		return matcher.isCompiled();
+	}
+
+	public void setCompiled(boolean compiled) {
+		matcher.setCompiled(compiled);
+	}
+
+	/** Query matched files by folder, extension and globs, see {@link PathQuery} */
+	public PathQuery query() {
+		return matcher.query();
+	}
+
+	/** Immutable view of matched files, see {@link FileMatcher#snapshot()} */
+	public PathSnapshot snapshot() {
+		return matcher.snapshot();
+	}
+
+	public PathStorage getStorage() {
+		return matcher.getStorage();
+	}
+
+	public void setStorage(PathStorage storage) {
+		matcher.setStorage(storage);
+	}
+
+	public WatchMode getWatchMode() {
+		return matcher.getWatchMode();
+	}
+
+	public void setWatchMode(WatchMode watchMode) {
+		matcher.setWatchMode(watchMode);
+	}
+
+	public FileHashing getHashing() {
+		return matcher.getHashing();
+	}
+
+	public void setHashing(FileHashing hashing) {
+		matcher.setHashing(hashing);
+	}
+
+	public long getHashSizeLimit() {
+		return matcher.getHashSizeLimit();
+	}
+
+	public void setHashSizeLimit(long hashSizeLimit) {
+		matcher.setHashSizeLimit(hashSizeLimit);
+	}
+
 	public boolean isMatch(Path path) {
 		return matcher.isMatch(path);
 	}
@@ -0,0 +1,132 @@
+package hr.hrg.javawatcher;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Content hashes kept on disk between restarts, so unchanged files are not read again on startup.
+ * <p>
+ * A hash is reused only if size, modification time and file key of the file are the same as when it was hashed.
+ * Only entries used during this run are saved, so hashes of deleted files do not pile up.
+ * </p>
+ * */
+public class HashCache {
+
+	static final int MAGIC = 0x4a574843; // JWHC
+	static final int VERSION = 1;
+
+	protected final Path file;
+	protected Map<Path, CachedHash> hashes = new HashMap<>();
+
+	public HashCache(Path file) {
+		this.file = file;
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	/**
+	 * Load the cache from disk with a single read, see {@link TreeSnapshot#readFile(Path)}.
+	 *
+	 * @return false if there is no cache, or it is not readable (then files are hashed again)
+	 * */
+	public synchronized boolean load() {
+		hashes = new HashMap<>();
+		if(!Files.isRegularFile(file)) return false;
+
+		try {
+			ByteBuffer buf = TreeSnapshot.readFile(file);
+			if(buf.getInt() != MAGIC || buf.getInt() != VERSION) return false;
+
+			// path, size, mtime, key, hash
+			int count = TreeSnapshot.readCount(buf, 32);
+			hashes = new HashMap<>(count*2);
+			for(int i=0; i<count; i++) {
+				Path path = Paths.get(TreeSnapshot.readString(buf));
+				hashes.put(path, new CachedHash(buf.getLong(), buf.getLong(), TreeSnapshot.readString(buf), buf.getLong()));
+			}
+			return true;
+		} catch (IOException | RuntimeException e) {
+			// corrupt or truncated file: underflow, invalid path
+			Main.logError("Unable to read hash cache "+file, e);
+			hashes = new HashMap<>();
+			return false;
+		}
+	}
+
+	/**
+	 * @param path absolute path of the file
+	 * @return cached hash, or null if the file is not in the cache or has changed since it was hashed
+	 * */
+	public synchronized Long get(Path path, BasicFileAttributes attrs) {
+		CachedHash cached = hashes.get(path);
+		if(cached == null || !cached.matches(attrs)) return null;
+		cached.used = true;
+		return cached.hash;
+	}
+
+	public synchronized void put(Path path, BasicFileAttributes attrs, long hash) {
+		CachedHash cached = new CachedHash(attrs.size(), TreeSnapshot.toNanos(attrs), TreeSnapshot.fileKey(attrs), hash);
+		cached.used = true;
+		hashes.put(path, cached);
+	}
+
+	public synchronized int size() {
+		return hashes.size();
+	}
+
+	/**
+	 * Write entries used during this run. Cache is written to a temporary file first, and then moved in place.
+	 * */
+	public synchronized void save() throws IOException {
+		int count = 0;
+		for(CachedHash cached:hashes.values()) if(cached.used) count++;
+
+		Path tmp = file.resolveSibling(file.getFileName()+".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 65536))){
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(count);
+			for(Entry<Path, CachedHash> e:hashes.entrySet()) {
+				CachedHash cached = e.getValue();
+				if(!cached.used) continue;
+				TreeSnapshot.writeString(out, e.getKey().toString());
+				out.writeLong(cached.size);
+				out.writeLong(cached.mtime);
+				TreeSnapshot.writeString(out, cached.key);
+				out.writeLong(cached.hash);
+			}
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	static class CachedHash {
+		final long size;
+		final long mtime;
+		final String key;
+		final long hash;
+		boolean used;
+
+		CachedHash(long size, long mtime, String key, long hash) {
+			this.size = size;
+			this.mtime = mtime;
+			this.key = key;
+			this.hash = hash;
+		}
+
+		boolean matches(BasicFileAttributes attrs) {
+			return size == attrs.size() && mtime == TreeSnapshot.toNanos(attrs) && key.equals(TreeSnapshot.fileKey(attrs));
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package hr.hrg.javawatcher;
 
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Set;
@@ -29,6 +30,13 @@ public interface IFolderWatcher<T> {
 	/** Get all unique files matched until now. */
 	Set<Path> getMatchedFilesUnique();
 
+	/** Query files matched until now by all matchers, see {@link PathQuery}. Paths are relative to the root of their matcher. */
+	default PathQuery query() {
+		List<PathIndex> indexes = new ArrayList<>();
+		for(FileMatcher<T> m:getMatchers()) indexes.add(m.index());
+		return new PathQuery(indexes);
+	}
+
 	
 	/**
 	 * Add a {@link FileMatcher} that will be used to watch files/folders
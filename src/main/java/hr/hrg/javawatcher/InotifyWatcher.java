@@ -0,0 +1,376 @@
+package hr.hrg.javawatcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.sun.jna.LastErrorException;
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Platform;
+import com.sun.jna.Pointer;
+
+/**
+ * Native events on Linux from inotify called directly, instead of the JDK watch service and directory-watcher,
+ * see {@link WatchBackend#INOTIFY}.
+ * <p>
+ * The JDK watch service reads inotify in its single poller thread, and creates several objects per event on the way to
+ * the listener (event, key signalling, directory-watcher event). Here a dedicated thread waits in {@code poll(2)},
+ * reads all pending events at once into a reused off-heap buffer, and decodes their headers in place, so the only
+ * objects created per event are the name and the path given to the matchers. Folders created or moved into the tree
+ * get their watches (and a CREATE for their content) right away. Only folders that a matcher scans get a watch, the same
+ * ones {@link FolderWatcher#isDirScanned(FileMatcher, Path)} allows for the initial scan.
+ * </p><p>
+ * Modifications are reported once a file that was written is closed ({@code IN_CLOSE_WRITE}), and when its attributes
+ * change ({@code IN_ATTRIB}, for example {@code touch}), instead of for every write, so {@link FileHashing} is not used
+ * to filter them. inotify is called through JNA, which is already used by directory-watcher, so it works on Java 8.
+ * </p>
+ * */
+public class InotifyWatcher<T> implements AutoCloseable {
+
+	static final int IN_ATTRIB = 0x4;
+	static final int IN_CLOSE_WRITE = 0x8;
+	static final int IN_MOVED_FROM = 0x40;
+	static final int IN_MOVED_TO = 0x80;
+	static final int IN_CREATE = 0x100;
+	static final int IN_DELETE = 0x200;
+	static final int IN_Q_OVERFLOW = 0x4000;
+	static final int IN_IGNORED = 0x8000;
+	static final int IN_ONLYDIR = 0x1000000;
+	static final int IN_EXCL_UNLINK = 0x4000000;
+	static final int IN_ISDIR = 0x40000000;
+	/** same value for IN_NONBLOCK and EFD_NONBLOCK */
+	static final int NONBLOCK = 0x800;
+	/** same value for IN_CLOEXEC and EFD_CLOEXEC */
+	static final int CLOEXEC = 0x80000;
+	static final short POLLIN = 1;
+	static final int EINTR = 4;
+	static final int EAGAIN = 11;
+	static final int ENOENT = 2;
+	static final int ENOSPC = 28;
+
+	static final int MASK = IN_CREATE | IN_DELETE | IN_MOVED_FROM | IN_MOVED_TO | IN_CLOSE_WRITE | IN_ATTRIB | IN_ONLYDIR | IN_EXCL_UNLINK;
+	/** size of struct inotify_event without the name */
+	static final int HEADER = 16;
+	static final int BUFFER_SIZE = 64 * 1024;
+	/** limit for {@link #created}, files created without writing (links, fifos) never get a close event */
+	static final int MAX_CREATED = 10000;
+	static final NativeLong READ_SIZE = new NativeLong(BUFFER_SIZE);
+	static final NativeLong COUNTER_SIZE = new NativeLong(8);
+
+	protected final FolderWatcher<T> watcher;
+	protected final RootIndex<T> rootIndex;
+	protected final int fd;
+	/** eventfd to wake up the read thread on close */
+	protected final int wakeFd;
+	protected final Memory buffer = new Memory(BUFFER_SIZE);
+	protected final Memory pollFds = new Memory(16);
+
+	/** watched folder by watch descriptor, changed only from the read thread once started */
+	protected final Map<Integer, Path> dirs = new HashMap<>();
+	/** watch descriptor by folder, sorted by path so the folders under one are a single range */
+	protected final TreeMap<String, Integer> wds = new TreeMap<>();
+	protected volatile int watchCount;
+	protected volatile long eventCount;
+	protected volatile boolean closed;
+	protected boolean started;
+
+	/** files created and not yet closed, their first close is part of the CREATE, used only from the read thread */
+	private final Set<Path> created = new HashSet<>();
+	/** matchers for the current event, used only from the read thread */
+	private final List<FileMatcher<T>> routed = new ArrayList<>();
+
+	/** Native calls, bound on first use with JNA direct mapping */
+	static final class LibC {
+		static {
+			Native.register(Platform.C_LIBRARY_NAME);
+		}
+
+		static native int inotify_init1(int flags) throws LastErrorException;
+		static native int inotify_add_watch(int fd, String pathname, int mask) throws LastErrorException;
+		static native int inotify_rm_watch(int fd, int wd) throws LastErrorException;
+		static native int eventfd(int initval, int flags) throws LastErrorException;
+		static native int poll(Pointer fds, int nfds, int timeout) throws LastErrorException;
+		static native NativeLong read(int fd, Pointer buf, NativeLong count) throws LastErrorException;
+		static native NativeLong write(int fd, Pointer buf, NativeLong count) throws LastErrorException;
+		static native int close(int fd) throws LastErrorException;
+	}
+
+	/** @return true on Linux when the native calls can be bound */
+	public static boolean isAvailable() {
+		try {
+			if(!Platform.isLinux()) return false;
+			Class.forName(LibC.class.getName(), true, InotifyWatcher.class.getClassLoader());
+			return true;
+		} catch (Throwable e) {
+			return false;
+		}
+	}
+
+	public InotifyWatcher(FolderWatcher<T> watcher, RootIndex<T> rootIndex) throws IOException {
+		this.watcher = watcher;
+		this.rootIndex = rootIndex;
+		try {
+			fd = LibC.inotify_init1(NONBLOCK | CLOEXEC);
+		} catch (LastErrorException e) {
+			throw new IOException("inotify_init1 failed, errno "+e.getErrorCode(), e);
+		}
+		try {
+			wakeFd = LibC.eventfd(0, NONBLOCK | CLOEXEC);
+		} catch (LastErrorException e) {
+			closeQuietly(fd);
+			throw new IOException("eventfd failed, errno "+e.getErrorCode(), e);
+		}
+	}
+
+	/** Watch all folders under the roots and start reading events */
+	public void start() {
+		for(Path root:rootIndex.getWatchRoots()) watchTree(root.toAbsolutePath().normalize(), false);
+		if(Main.isInfoEnabled()) Main.logInfo("inotify watching "+watchCount+" folders");
+		started = true;
+		watcher.newThread(new Runnable() {
+			@Override
+			public void run() {
+				readEvents();
+			}
+		}, "inotify "+rootIndex.getWatchRoots().size()+" roots").start();
+	}
+
+	protected void readEvents() {
+		pollFds.setInt(0, fd);
+		pollFds.setShort(4, POLLIN);
+		pollFds.setShort(6, (short) 0);
+		pollFds.setInt(8, wakeFd);
+		pollFds.setShort(12, POLLIN);
+		pollFds.setShort(14, (short) 0);
+		try {
+			while(!closed) {
+				try {
+					LibC.poll(pollFds, 2, -1);
+				} catch (LastErrorException e) {
+					if(e.getErrorCode() == EINTR) continue;
+					throw e;
+				}
+				if(closed) break;
+
+				int len;
+				try {
+					len = LibC.read(fd, buffer, READ_SIZE).intValue();
+				} catch (LastErrorException e) {
+					if(e.getErrorCode() == EAGAIN || e.getErrorCode() == EINTR) continue;
+					throw e;
+				}
+				for(int pos = 0; pos < len; ) {
+					int nameLength = buffer.getInt(pos + 12);
+					handle(buffer.getInt(pos), buffer.getInt(pos + 4), nameLength == 0 ? null : buffer.getString(pos + HEADER));
+					pos += HEADER + nameLength;
+				}
+			}
+		} catch (LastErrorException e) {
+			Main.logError("Reading inotify events failed, errno "+e.getErrorCode(), e);
+		} finally {
+			closeQuietly(fd);
+			closeQuietly(wakeFd);
+		}
+	}
+
+	protected void handle(int wd, int mask, String name) {
+		eventCount++;
+		if((mask & IN_Q_OVERFLOW) != 0) {
+			watcher.overflow(null);
+			return;
+		}
+		Path dir = dirs.get(wd);
+		if((mask & IN_IGNORED) != 0) {
+			// folder deleted, or watch removed by us
+			if(dir != null) unwatch(wd);
+			return;
+		}
+		// events for the watched folder itself also come to its parent
+		if(dir == null || name == null) return;
+
+		Path path = dir.resolve(name);
+		boolean isDir = (mask & IN_ISDIR) != 0;
+		if((mask & (IN_CREATE | IN_MOVED_TO)) != 0) {
+			dispatch(path, FileChangeType.CREATE);
+			if(isDir) {
+				watchTree(path, true);
+			}else if((mask & IN_CREATE) != 0) {
+				if(created.size() >= MAX_CREATED) created.clear();
+				created.add(path);
+			}
+		}else if((mask & (IN_DELETE | IN_MOVED_FROM)) != 0) {
+			// a moved folder keeps its watches, but they would report the old path
+			if(isDir && (mask & IN_MOVED_FROM) != 0) unwatchTree(path);
+			if(!isDir) created.remove(path);
+			dispatch(path, FileChangeType.DELETE);
+		}else if(!isDir && (mask & (IN_CLOSE_WRITE | IN_ATTRIB)) != 0) {
+			if((mask & IN_CLOSE_WRITE) != 0 && !created.isEmpty() && created.remove(path)) return;
+			dispatch(path, FileChangeType.MODIFY);
+		}
+	}
+
+	protected void dispatch(Path path, FileChangeType type) {
+		try {
+			routed.clear();
+			rootIndex.collect(path, routed);
+			if(!routed.isEmpty()) watcher.dispatch(path, type, routed);
+		} catch (Exception e) {
+			Main.logError("Unable to handle "+type+" "+path, e);
+		}
+	}
+
+	/**
+	 * Watch the folder and all folders under it that a matcher scans.
+	 *
+	 * @param report send CREATE for everything found, for a folder that was just created or moved in, as files
+	 * created before the watch was added have no events
+	 * */
+	protected void watchTree(final Path start, final boolean report) {
+		final List<FileMatcher<T>> outside = new ArrayList<>();
+		rootIndex.collect(start, outside);
+		// matchers interested in the folders on the way from start to the current one
+		final Deque<List<FileMatcher<T>>> interested = new ArrayDeque<>();
+		try {
+			Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+					List<FileMatcher<T>> inDir = interested(dir, interested.isEmpty() ? outside : interested.peek());
+					if(inDir.isEmpty()) return FileVisitResult.SKIP_SUBTREE;
+
+					interested.push(inDir);
+					watch(dir);
+					if(report && !dir.equals(start)) dispatch(dir, FileChangeType.CREATE);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+					interested.pop();
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					if(report) dispatch(file, FileChangeType.CREATE);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			Main.logError(start, "Unable to watch folder", e);
+		}
+	}
+
+	/**
+	 * @param parent matchers interested in the parent folder
+	 * @return matchers that want events from the folder: ones that scan it and ones with the root in it
+	 * */
+	protected List<FileMatcher<T>> interested(Path dir, List<FileMatcher<T>> parent) {
+		List<FileMatcher<T>> list = new ArrayList<>();
+		for(FileMatcher<T> matcher:parent) {
+			if(FolderWatcher.isDirScanned(matcher, dir)) list.add(matcher);
+		}
+		rootIndex.collectRoot(dir, list);
+		return list;
+	}
+
+	protected void watch(Path dir) {
+		int wd;
+		try {
+			wd = LibC.inotify_add_watch(fd, dir.toString(), MASK);
+		} catch (LastErrorException e) {
+			// deleted before we got to it
+			if(e.getErrorCode() == ENOENT) return;
+			if(e.getErrorCode() == ENOSPC) {
+				Main.logWarn("Unable to watch "+dir+", inotify watch limit reached after "+watchCount+" folders (fs.inotify.max_user_watches)");
+			}else {
+				Main.logWarn("Unable to watch "+dir+", errno "+e.getErrorCode());
+			}
+			return;
+		}
+		// same descriptor is returned for a folder that is already watched
+		Path old = dirs.put(wd, dir);
+		if(old != null) wds.remove(old.toString());
+		wds.put(dir.toString(), wd);
+		watchCount = dirs.size();
+	}
+
+	protected void unwatch(int wd) {
+		Path dir = dirs.remove(wd);
+		if(dir != null) wds.remove(dir.toString());
+		watchCount = dirs.size();
+	}
+
+	/** Remove watches of the folder and all folders under it, visiting only those */
+	protected void unwatchTree(Path dir) {
+		String name = dir.toString();
+		List<Integer> remove = new ArrayList<>();
+		Integer own = wds.get(name);
+		if(own != null) remove.add(own);
+		// strings starting with "dir/" sort before "dir" + next char after the separator
+		remove.addAll(wds.subMap(name + File.separatorChar, name + (char)(File.separatorChar + 1)).values());
+		for(Integer wd:remove) {
+			try {
+				LibC.inotify_rm_watch(fd, wd);
+			} catch (LastErrorException e) {
+				// already gone
+			}
+			unwatch(wd);
+		}
+	}
+
+	/** number of folders with a watch */
+	public int getWatchCount() {
+		return watchCount;
+	}
+
+	/** number of events read from inotify */
+	public long getEventCount() {
+		return eventCount;
+	}
+
+	@Override
+	public void close() {
+		if(closed) return;
+		closed = true;
+		if(!started) {
+			closeQuietly(fd);
+			closeQuietly(wakeFd);
+			return;
+		}
+		Memory one = new Memory(8);
+		one.setLong(0, 1);
+		try {
+			LibC.write(wakeFd, one, COUNTER_SIZE);
+		} catch (LastErrorException e) {
+			Main.logError("Unable to stop inotify thread, errno "+e.getErrorCode(), e);
+		}
+	}
+
+	static void closeQuietly(int fd) {
+		try {
+			LibC.close(fd);
+		} catch (LastErrorException e) {
+			// nothing to do
+		}
+	}
+}
@@ -10,6 +10,8 @@ import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
@@ -22,6 +24,8 @@ public class Main {
 
 	static SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
 	static AtomicInteger taskSeq = new AtomicInteger();
+	/** null for platform threads, see --virtualThreads */
+	static ThreadFactory threadFactory;
 	
 	public static void main(String[] args) throws Exception{
 
@@ -30,9 +34,12 @@ public class Main {
 		}
 		
 		String pathToWatch = args[0];
-		String commandToRun = args[1];
+		final String commandToRun = args[1];
 		boolean postChanges = false;
-		Logger log = Logger.getLogger(Main.class.getName());
+		final Logger log = Logger.getLogger(Main.class.getName());
+		RunMode runMode = RunMode.QUEUE;
+		int maxTasks = 2;
+		int retries = 3;
 
 		GlobWatcher watcher = new GlobWatcher(Paths.get(pathToWatch));
 		long burstDelay = 50;
@@ -50,21 +57,75 @@ public class Main {
 				watcher.excludes(args[i].substring(10));
 			}else if(args[i].equals("--postChanges")) {
 				postChanges = true;
+			}else if(args[i].startsWith("--run=")) {
+				runMode = RunMode.valueOf(args[i].substring(6).toUpperCase());
+			}else if(args[i].startsWith("--maxTasks=")) {
+				maxTasks = Integer.parseInt(args[i].substring(11));
+			}else if(args[i].startsWith("--retries=")) {
+				retries = Integer.parseInt(args[i].substring(10));
+			}else if(args[i].equals("--virtualThreads")) {
+				threadFactory = WatchUtil.virtualThreadFactory();
+				if(threadFactory == null) {
+					logWarn("Virtual threads are not available in Java "+System.getProperty("java.version")+", using platform threads");
+				}else if(watcher.getWatcher() instanceof FolderWatcher){
+					((FolderWatcher<?>)watcher.getWatcher()).setThreadFactory(threadFactory);
+				}
 			}
 		}
 
 		watcher.init(true);
 		
+		final boolean post = postChanges;
+		// requests are sent by the runner tasks, so --run and --maxTasks decide how many run at once
+		final HttpSink sink = isUrl(commandToRun) ? new HttpSink(new URL(commandToRun), postChanges, 1, threadFactory) : null;
+		if(sink != null) sink.setMaxRetries(retries);
 
-		while(!Thread.interrupted()){
-
-			Collection<Path> changed = watcher.takeBatchFilesUnique(burstDelay);
-			if(changed == null) break; // interrupted
+		TaskRunner runner = new TaskRunner(runMode, maxTasks, threadFactory, new TaskRunner.Action() {
+			@Override
+			public void run(TaskRunner.Task task) throws Exception {
+				if(sink != null) {
+					log.info("sending changes to url: "+commandToRun);
+					sink.deliver(post ? bytesToWrite(task.getChanged()) : new byte[0], System.out, task);
+				}else {
+					runScript(log, commandToRun, null, task.getChanged(), post, System.out, System.err, task);
+				}
+			}
+		});
 
-			System.out.println(sdf.format(new Date())+" - "+changed.size()+" files changed");
-			runScript(log,commandToRun, null, changed, postChanges, System.out, System.err);
+		try {
+			while(!Thread.interrupted()){
+	
+				Collection<Path> changed = changedPaths(watcher, watcher.takeBatch(burstDelay));
+				if(changed == null) break; // interrupted
+	
+				System.out.println(sdf.format(new Date())+" - "+changed.size()+" files changed");
+				runner.submit(changed);
+			}
+		} finally {
+			runner.close();
+			if(sink != null) sink.close();
 		}
-		
+	}
+	
+	/**
+	 * Unique changed paths of the batch. {@link FileChangeType#OVERFLOW} is not a file change, it means changes were
+	 * dropped, so all matched files are returned instead.
+	 * */
+	static Collection<Path> changedPaths(GlobWatcher<?> watcher, Collection<? extends FileChangeEntry<?>> changes) {
+		if(changes == null) return null;
+		Collection<Path> paths = new HashSet<>(changes.size());
+		for(FileChangeEntry<?> change:changes) {
+			if(change.getType() == FileChangeType.OVERFLOW) {
+				if(isWarnEnabled()) logWarn("Too many changes, some were dropped, passing all matched files");
+				return watcher.getMatchedFilesUnique();
+			}
+			paths.add(change.getPath());
+		}
+		return paths;
+	}
+
+	static boolean isUrl(String command) {
+		return command.startsWith("http://") || command.startsWith("https://");
 	}
 	
 	public static int nextId() {
@@ -72,11 +133,22 @@ public class Main {
 	}
 
 	public static void runHttp(Logger log, String command, Collection<Path> changed, boolean postChanges, PrintStream out) throws Exception{
+		runHttp(log, command, changed, postChanges, out, null);
+	}
+
+	/** @param task to stop the request when the task is cancelled, can be null */
+	public static void runHttp(Logger log, String command, Collection<Path> changed, boolean postChanges, PrintStream out, TaskRunner.Task task) throws Exception{
 		log.info("sending changes to url: "+command);
 		
 		byte[] bytes = bytesToWrite(changed);
 		
-		HttpURLConnection conn = (HttpURLConnection) new URL(command).openConnection();
+		final HttpURLConnection conn = (HttpURLConnection) new URL(command).openConnection();
+		if(task != null) task.onCancel(new Runnable() {
+			@Override
+			public void run() {
+				conn.disconnect();
+			}
+		});
 		if(postChanges) {
 			conn.setDoOutput(true);
 			conn.setRequestMethod( "POST" );
@@ -90,7 +162,8 @@ public class Main {
 		out.println("response code:"+responseCode);
 		InputStream inputStream = conn.getInputStream();
 		pipeStream(inputStream,out);
-		conn.disconnect();
+		// close instead of disconnect, so the connection can be reused
+		inputStream.close();
 	}
 
 	private static byte[] bytesToWrite(Collection<Path> changed) {
@@ -111,8 +184,13 @@ public class Main {
 	}
 
 	public static void runScript(Logger log, String command, String[] params, Collection<Path> changed, boolean postChanges, PrintStream out, final PrintStream err) throws Exception{
-		if(command.startsWith("http://")){
-				runHttp(log, command, changed, postChanges, out);
+		runScript(log, command, params, changed, postChanges, out, err, null);
+	}
+
+	/** @param task to stop the script when the task is cancelled, can be null */
+	public static void runScript(Logger log, String command, String[] params, Collection<Path> changed, boolean postChanges, final PrintStream out, final PrintStream err, final TaskRunner.Task task) throws Exception{
+		if(isUrl(command)){
+				runHttp(log, command, changed, postChanges, out, task);
 		}else {
 			log.info("running script: "+command);
 			try {
@@ -125,11 +203,18 @@ public class Main {
 					cmdArray = new String[]{command};
 				}
 				final Process process = Runtime.getRuntime().exec(cmdArray);
+				if(task != null) task.onCancel(new Runnable() {
+					@Override
+					public void run() {
+						// closes the output streams too, so piping below ends
+						process.destroy();
+					}
+				});
 				if(postChanges) {
 					process.getOutputStream().write(bytesToWrite(changed));
 					process.getOutputStream().close();
 				}
-				new Thread(new Runnable() {
+				newThread(new Runnable() {
 					public void run() {						
 						try {
 							pipeStream(process.getErrorStream(), err);
@@ -139,7 +224,29 @@ public class Main {
 					}
 				}).start();
 
-				pipeStream(process.getInputStream(), out);
+				if(task == null) {
+					pipeStream(process.getInputStream(), out);
+				}else {
+					// wait in an interruptible way, as the output stays open while child processes of a destroyed script run
+					Thread outPipe = newThread(new Runnable() {
+						public void run() {						
+							try {
+								pipeStream(process.getInputStream(), out);
+							} catch (Exception e) {
+								if(!task.isCancelled()) e.printStackTrace();
+							}
+						}
+					});
+					outPipe.start();
+					try {
+						process.waitFor();
+						outPipe.join();
+					} catch (InterruptedException e) {
+						process.destroy();
+						log.info("cancelled script: "+command);
+						return;
+					}
+				}
 				log.info("done running script: "+command);
 			} catch (IOException e) {
 				e.printStackTrace();
@@ -147,11 +254,24 @@ public class Main {
 		}
 	}
 	
+	static Thread newThread(Runnable runnable) {
+		return threadFactory == null ? new Thread(runnable) : threadFactory.newThread(runnable);
+	}
+
 	private static void printHelp() {
 		System.out.println("Usage: folder script [arguments]");
 		System.out.println(" --burstDelay=x    - number of miliseconds to wait before sending changes ");
 		System.out.println("                     (some programs may generate more than one chenge event in very short time when writing a file) ");
 		System.out.println(" --postChanges     - write changed files info to the script/url (script input stream or HTTP POST for url) ");
+		System.out.println(" --virtualThreads  - use virtual threads for watching and script output (Java 21+)");
+		System.out.println(" --run=mode        - what to do with changes while the script (or url request) is running ");
+		System.out.println("                     queue   - run once more with all of them when done (default) ");
+		System.out.println("                     restart - stop the script and run again with all changes ");
+		System.out.println("                     parallel - run up to --maxTasks scripts at once, ");
+		System.out.println("                                url requests can then arrive out of order ");
+		System.out.println(" --maxTasks=n      - scripts that can run at once with --run=parallel (default 2) ");
+		System.out.println("                     for url with more than 5 also use -Dhttp.maxConnections=n to reuse connections ");
+		System.out.println(" --retries=n       - for url, how many times to retry a failed request with backoff (default 3) ");
 		System.out.println(" --include=pattern - can be used multiple times, defines an include pattern");
 		System.out.println(" --include=pattern - can be used multiple times, defines an include pattern");
 		System.out.println(" --exclude=pattern - can be used multiple times, defines an include pattern");
@@ -0,0 +1,306 @@
+package hr.hrg.javawatcher;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Set of paths kept outside the Java heap, so very large matched sets do not add to GC work.
+ * <p>
+ * Paths are stored as UTF-8 records {@code [hash][length][bytes]} appended to a direct {@link ByteBuffer} arena,
+ * and found through an open addressing hash index of arena offsets in a direct {@link IntBuffer}. There are no
+ * objects per entry, {@link Path} instances are created only while iterating, in insertion order.
+ * Removed records are marked, and the arena is compacted when more than half of it is garbage.
+ * The arena is limited to 2GB. Not thread safe.
+ * </p>
+ * */
+public class OffHeapPathSet extends AbstractSet<Path> {
+
+	static final int HEADER = 8;
+	static final int REMOVED = 0x80000000;
+
+	protected ByteBuffer arena;
+	/** arena offset + 1 of each entry, 0 for empty slots */
+	protected IntBuffer index;
+	protected int mask;
+	protected int end;
+	protected int garbage;
+	protected int size;
+	protected int modCount;
+
+	public OffHeapPathSet() {
+		this(64 * 1024, 1024);
+	}
+
+	/**
+	 * @param arenaBytes initial arena size
+	 * @param slots initial index size, rounded up to a power of two
+	 * */
+	public OffHeapPathSet(int arenaBytes, int slots) {
+		arena = ByteBuffer.allocateDirect(Math.max(arenaBytes, 64));
+		int capacity = Integer.highestOneBit(Math.max(slots, 16) - 1) << 1;
+		index = ByteBuffer.allocateDirect(capacity * 4).asIntBuffer();
+		mask = capacity - 1;
+	}
+
+	public OffHeapPathSet(Collection<Path> paths) {
+		this();
+		addAll(paths);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/** bytes used by the arena and the index, including garbage and free space */
+	public long getOffHeapBytes() {
+		return arena.capacity() + (long)index.capacity() * 4;
+	}
+
+	@Override
+	public void clear() {
+		for(int i=0; i<=mask; i++) index.put(i, 0);
+		end = 0;
+		garbage = 0;
+		size = 0;
+		modCount++;
+	}
+
+	@Override
+	public boolean add(Path path) {
+		byte[] bytes = bytes(path);
+		int hash = hash(bytes);
+		if(slotOf(bytes, hash) >= 0) return false;
+
+		if(garbage > HEADER * 1024 && garbage > end / 2) compact();
+		if((size + 1) * 3 > (mask + 1) * 2) rehash((mask + 1) * 2);
+		long needed = (long)end + HEADER + bytes.length;
+		if(needed > arena.capacity()) growArena(needed);
+
+		int offset = end;
+		arena.putInt(offset, hash);
+		arena.putInt(offset + 4, bytes.length);
+		for(int i=0; i<bytes.length; i++) arena.put(offset + HEADER + i, bytes[i]);
+		end += HEADER + bytes.length;
+
+		int slot = hash & mask;
+		while(index.get(slot) != 0) slot = (slot + 1) & mask;
+		index.put(slot, offset + 1);
+		size++;
+		modCount++;
+		return true;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		if(!(o instanceof Path)) return false;
+		byte[] bytes = bytes((Path) o);
+		return slotOf(bytes, hash(bytes)) >= 0;
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		if(!(o instanceof Path)) return false;
+		byte[] bytes = bytes((Path) o);
+		int slot = slotOf(bytes, hash(bytes));
+		if(slot < 0) return false;
+		removeSlot(slot);
+		return true;
+	}
+
+	/**
+	 * Remove the path and all paths under it. Needs a pass over the whole arena, records are compared as bytes in
+	 * place, and a {@link Path} is created only for removed records that are collected.
+	 *
+	 * @param removed collects removed paths, can be null
+	 * @return number of removed paths
+	 * */
+	public int removeSubtree(Path dir, Collection<Path> removed) {
+		String name = dir.toString();
+		String separator = dir.getFileSystem().getSeparator();
+		byte[] exact = name.getBytes(StandardCharsets.UTF_8);
+		// the root ("/") already ends with the separator, and nothing is under the empty path
+		byte[] prefix = name.isEmpty() ? null : name.endsWith(separator) ? exact : (name + separator).getBytes(StandardCharsets.UTF_8);
+		int count = 0;
+		for(int offset = 0; offset < end;) {
+			int length = arena.getInt(offset + 4);
+			int next = offset + HEADER + (length & ~REMOVED);
+			if((length & REMOVED) == 0 && (equalsAt(offset, exact) || prefix != null && startsWithAt(offset, prefix))) {
+				if(removed != null) removed.add(Paths.get(new String(read(offset + HEADER, length), StandardCharsets.UTF_8)));
+				removeSlot(slotAt(offset));
+				count++;
+			}
+			offset = next;
+		}
+		return count;
+	}
+
+	@Override
+	public Iterator<Path> iterator() {
+		return new Iterator<Path>() {
+			int offset = skipRemoved(0);
+			int last = -1;
+			int expectedMod = modCount;
+
+			@Override
+			public boolean hasNext() {
+				return offset < end;
+			}
+
+			@Override
+			public Path next() {
+				if(modCount != expectedMod) throw new ConcurrentModificationException();
+				if(offset >= end) throw new NoSuchElementException();
+				last = offset;
+				int length = arena.getInt(offset + 4);
+				Path path = Paths.get(new String(read(offset + HEADER, length), StandardCharsets.UTF_8));
+				offset = skipRemoved(offset + HEADER + length);
+				return path;
+			}
+
+			@Override
+			public void remove() {
+				if(last < 0) throw new IllegalStateException();
+				if(modCount != expectedMod) throw new ConcurrentModificationException();
+				int length = arena.getInt(last + 4);
+				removeSlot(slotOf(read(last + HEADER, length), arena.getInt(last)));
+				expectedMod = modCount;
+				last = -1;
+			}
+		};
+	}
+
+	private int skipRemoved(int offset) {
+		while(offset < end) {
+			int length = arena.getInt(offset + 4);
+			if((length & REMOVED) == 0) break;
+			offset += HEADER + (length & ~REMOVED);
+		}
+		return offset;
+	}
+
+	static byte[] bytes(Path path) {
+		return path.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	static int hash(byte[] bytes) {
+		int h = 0x811C9DC5;
+		for(byte b:bytes) h = (h ^ b) * 0x01000193;
+		return h ^ (h >>> 16);
+	}
+
+	private byte[] read(int offset, int length) {
+		byte[] bytes = new byte[length];
+		for(int i=0; i<length; i++) bytes[i] = arena.get(offset + i);
+		return bytes;
+	}
+
+	/** index slot of the path, or -1 */
+	private int slotOf(byte[] bytes, int hash) {
+		for(int slot = hash & mask; ; slot = (slot + 1) & mask) {
+			int entry = index.get(slot);
+			if(entry == 0) return -1;
+			int offset = entry - 1;
+			if(arena.getInt(offset) == hash && equalsAt(offset, bytes)) return slot;
+		}
+	}
+
+	private boolean equalsAt(int offset, byte[] bytes) {
+		if(arena.getInt(offset + 4) != bytes.length) return false;
+		for(int i=0; i<bytes.length; i++) {
+			if(arena.get(offset + HEADER + i) != bytes[i]) return false;
+		}
+		return true;
+	}
+
+	private boolean startsWithAt(int offset, byte[] prefix) {
+		if(arena.getInt(offset + 4) < prefix.length) return false;
+		for(int i=0; i<prefix.length; i++) {
+			if(arena.get(offset + HEADER + i) != prefix[i]) return false;
+		}
+		return true;
+	}
+
+	/** index slot of the live record at the arena offset */
+	private int slotAt(int offset) {
+		int slot = arena.getInt(offset) & mask;
+		while(index.get(slot) != offset + 1) slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	/** mark the record removed, and delete from the index with backward shift */
+	private void removeSlot(int slot) {
+		int offset = index.get(slot) - 1;
+		int length = arena.getInt(offset + 4);
+		arena.putInt(offset + 4, length | REMOVED);
+		garbage += HEADER + length;
+		size--;
+		modCount++;
+
+		int i = slot;
+		index.put(i, 0);
+		for(int j = (i + 1) & mask; index.get(j) != 0; j = (j + 1) & mask) {
+			int home = arena.getInt(index.get(j) - 1) & mask;
+			boolean stay = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+			if(stay) continue;
+			index.put(i, index.get(j));
+			index.put(j, 0);
+			i = j;
+		}
+	}
+
+	private void growArena(long needed) {
+		if(needed > Integer.MAX_VALUE) throw new IllegalStateException("Path arena is limited to 2GB");
+		long capacity = Math.min(Integer.MAX_VALUE, Math.max((long)arena.capacity() * 2, needed));
+		ByteBuffer bigger = ByteBuffer.allocateDirect((int) capacity);
+		ByteBuffer src = arena.duplicate();
+		// Buffer methods, as ByteBuffer overrides from Java 9 are missing on Java 8
+		((Buffer) src).position(0);
+		((Buffer) src).limit(end);
+		bigger.put(src);
+		arena = bigger;
+	}
+
+	/** copy live records to a new arena, and rebuild the index */
+	private void compact() {
+		ByteBuffer compacted = ByteBuffer.allocateDirect((int)Math.min(Integer.MAX_VALUE, Math.max(64L, (end - garbage) * 2L)));
+		int out = 0;
+		for(int offset = 0; offset < end;) {
+			int length = arena.getInt(offset + 4);
+			int recordLength = HEADER + (length & ~REMOVED);
+			if((length & REMOVED) == 0) {
+				for(int i=0; i<recordLength; i++) compacted.put(out + i, arena.get(offset + i));
+				out += recordLength;
+			}
+			offset += recordLength;
+		}
+		arena = compacted;
+		end = out;
+		garbage = 0;
+		rehash(mask + 1);
+		modCount++;
+	}
+
+	private void rehash(int capacity) {
+		index = ByteBuffer.allocateDirect(capacity * 4).asIntBuffer();
+		mask = capacity - 1;
+		for(int offset = 0; offset < end;) {
+			int length = arena.getInt(offset + 4);
+			if((length & REMOVED) == 0) {
+				int slot = arena.getInt(offset) & mask;
+				while(index.get(slot) != 0) slot = (slot + 1) & mask;
+				index.put(slot, offset + 1);
+			}
+			offset += HEADER + (length & ~REMOVED);
+		}
+	}
+}
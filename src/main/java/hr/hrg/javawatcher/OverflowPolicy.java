@@ -0,0 +1,16 @@
+package hr.hrg.javawatcher;
+
+/**
+ * What {@link FolderWatcher} does with a change when the queue of the matcher ({@link FileMatcher#getQ()}) is full.
+ * Counters for each of them are in {@link QueueStats}.
+ * */
+public enum OverflowPolicy {
+	/** wait until the consumer makes room in the queue. Watch thread is blocked meanwhile. */
+	BLOCK,
+	/** drop the oldest change from the queue to make room */
+	DROP_OLDEST,
+	/** drop changes and deliver a single {@link FileChangeType#OVERFLOW} change for the matcher root instead, so the consumer can rescan */
+	RESCAN,
+	/** write changes to a file on disk and deliver them after the queue is drained */
+	SPILL
+}
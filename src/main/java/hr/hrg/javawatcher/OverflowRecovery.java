@@ -0,0 +1,147 @@
+package hr.hrg.javawatcher;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Brings matchers back in sync with the disk after the watch service reported an overflow (lost events).
+ * <p>
+ * Affected matchers are scanned again and compared to {@link FileMatcher#getMatched()}. New files are
+ * queued as CREATE, missing ones as DELETE, and files modified after the last event delivered before the
+ * overflow as MODIFY. The rescan runs {@code delay} ms after the first overflow, and all overflows until then
+ * are merged into that single rescan, so an event storm causes one reconciliation and not one per overflow.
+ * </p>
+ * */
+public class OverflowRecovery<T> {
+
+	/** files modified this close to the last delivered event are reported as MODIFY, to cover coarse mtime */
+	static final long MTIME_TOLERANCE = 1000;
+
+	protected final FolderWatcher<T> watcher;
+	protected final long delay;
+	protected final Set<FileMatcher<T>> pending = new LinkedHashSet<>();
+	protected final ScheduledExecutorService executor;
+	protected boolean scheduled;
+	protected long since;
+
+	/** time the last change was dispatched, changes after it may have been lost in the overflow */
+	protected volatile long lastEventMillis = System.currentTimeMillis();
+
+	public OverflowRecovery(FolderWatcher<T> watcher, long delay) {
+		this.watcher = watcher;
+		this.delay = delay;
+		this.executor = Executors.newSingleThreadScheduledExecutor(watcher.daemonFactory("overflow recovery"));
+	}
+
+	/** Called by the watcher for every dispatched change */
+	public void eventDispatched() {
+		lastEventMillis = System.currentTimeMillis();
+	}
+
+	/** Schedule rescan of the matchers, or add them to already scheduled rescan */
+	public synchronized void overflow(Collection<FileMatcher<T>> matchers) {
+		pending.addAll(matchers);
+		if(scheduled) return;
+
+		scheduled = true;
+		since = lastEventMillis;
+		executor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				rescanPending();
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	protected void rescanPending() {
+		List<FileMatcher<T>> todo;
+		long modifiedSince;
+		synchronized (this) {
+			todo = new ArrayList<>(pending);
+			pending.clear();
+			scheduled = false;
+			modifiedSince = since - MTIME_TOLERANCE;
+		}
+
+		for(FileMatcher<T> matcher:todo) {
+			try {
+				if(Main.isInfoEnabled()) Main.logInfo("Overflow recovery rescan "+matcher.getRootPath());
+				for(FileChangeEntry<T> change:reconcile(matcher, modifiedSince)) watcher.enqueue(change);
+			} catch (Exception e) {
+				Main.logError("Overflow recovery failed for "+matcher.getRootPath(), e);
+			}
+		}
+	}
+
+	/**
+	 * Scan the matcher root, and update the matcher to what is on the disk.
+	 *
+	 * @param modifiedSince files modified after this time (ms) are reported as MODIFY
+	 * @return changes needed to get from the old matched set to the current one
+	 * */
+	public List<FileChangeEntry<T>> reconcile(final FileMatcher<T> matcher, final long modifiedSince) throws IOException {
+		final Path rootPath = matcher.getRootPath();
+		final Map<Path, Long> found = new HashMap<>();
+
+		Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Path rel = matcher.relativize(file);
+				if(matcher.isMatch(rel)) found.put(rel, attrs.lastModifiedTime().toMillis());
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				if(dir.equals(rootPath)) return FileVisitResult.CONTINUE;
+				return FolderWatcher.isDirScanned(matcher, dir) ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+				return FileVisitResult.CONTINUE;
+			}
+		});
+
+		List<FileChangeEntry<T>> changes = new ArrayList<>();
+		synchronized (matcher) {
+			Set<Path> current = new HashSet<>(matcher.getMatched());
+			for(Entry<Path, Long> e:found.entrySet()) {
+				Path rel = e.getKey();
+				if(!current.remove(rel)) {
+					matcher.offer(rel);
+					changes.add(new FileChangeEntry<T>(rel, FileChangeType.CREATE, matcher));
+				}else if(e.getValue() >= modifiedSince) {
+					changes.add(new FileChangeEntry<T>(rel, FileChangeType.MODIFY, matcher));
+				}
+			}
+			for(Path rel:current) {
+				// folders can be in the matched set when they were offered from a watch event
+				if(Files.isDirectory(rootPath.resolve(rel))) continue;
+				matcher.fileDeleted(rel);
+				changes.add(new FileChangeEntry<T>(rel, FileChangeType.DELETE, matcher));
+			}
+		}
+		return changes;
+	}
+
+	public void close() {
+		executor.shutdownNow();
+	}
+}
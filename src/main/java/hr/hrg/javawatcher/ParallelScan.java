@@ -0,0 +1,102 @@
+package hr.hrg.javawatcher;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Parallel alternative to {@link FolderWatcher#fillMatcher(FileMatcher)} for very large trees.
+ * Each folder is a {@link RecursiveAction}, so idle threads of the {@link ForkJoinPool} steal sub-folders
+ * from busy ones. Folders are skipped by the same rules as the sequential walk, so the matched set is the same.
+ * <p>
+ * Listing folders and reading attributes is done in parallel, while files found in a folder are offered
+ * to the matcher in one block synchronized on the matcher, because {@link FileMatcher#offer(Path)}
+ * implementations are not required to be thread safe.
+ * </p>
+ * */
+public class ParallelScan {
+
+	/**
+	 * Collect all files accepted by the matchers, scanning all of them at the same time.
+	 *
+	 * @param matchers matchers to fill
+	 * @param parallelism number of threads to use
+	 * */
+	public static <T> void fill(Collection<? extends FileMatcher<T>> matchers, int parallelism) {
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			List<DirTask<T>> tasks = new ArrayList<>(matchers.size());
+			for(FileMatcher<T> matcher:matchers) {
+				matcher.setCollectMatched(true);
+				tasks.add(new DirTask<T>(matcher, matcher.getRootPath(), true));
+			}
+			for(DirTask<T> task:tasks) pool.execute(task);
+			for(DirTask<T> task:tasks) task.join();
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	public static <T> void fill(FileMatcher<T> matcher, int parallelism) {
+		List<FileMatcher<T>> list = new ArrayList<>(1);
+		list.add(matcher);
+		fill(list, parallelism);
+	}
+
+	static class DirTask<T> extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final FileMatcher<T> matcher;
+		private final Path dir;
+		private final boolean root;
+
+		DirTask(FileMatcher<T> matcher, Path dir, boolean root) {
+			this.matcher = matcher;
+			this.dir = dir;
+			this.root = root;
+		}
+
+		@Override
+		protected void compute() {
+			List<Path> files = new ArrayList<>();
+			List<DirTask<T>> subDirs = new ArrayList<>();
+
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)){
+				for(Path path:stream) {
+					BasicFileAttributes attrs;
+					try {
+						attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+					} catch (IOException e) {
+						// same as visitFileFailed in the sequential walk
+						continue;
+					}
+					if(!attrs.isDirectory()) {
+						files.add(path);
+					}else if(FolderWatcher.isDirScanned(matcher, path)) {
+						subDirs.add(new DirTask<T>(matcher, path, false));
+					}
+				}
+			} catch (IOException e) {
+				if(root) throw new RuntimeException(e.getMessage(),e);
+				return;
+			}
+
+			if(!files.isEmpty()) {
+				synchronized (matcher) {
+					for(Path file:files) matcher.offer(matcher.relativize(file));
+				}
+			}
+
+			if(!subDirs.isEmpty()) ForkJoinTask.invokeAll(subDirs);
+		}
+	}
+}
@@ -0,0 +1,251 @@
+package hr.hrg.javawatcher;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable sorted lookup structure over one version of matched paths, used by {@link PathQuery}.
+ * <p>
+ * Paths are kept sorted by their string form, so all paths under a folder are one contiguous range, found by
+ * descending the tree once. A second tree holds paths with an extension, sorted by extension first, so an extension
+ * query reads only its own paths, and combined with a folder it is narrowed to the range in the same way.
+ * </p><p>
+ * Both trees are persistent treaps: adding or removing a path copies only the nodes on the path to it (about log(n)),
+ * and all other nodes are shared with the previous version. {@link FileMatchGlob} builds the index on first query,
+ * and then keeps it up to date as files are matched and deleted, so a query after a change costs O(log n + results).
+ * An index never changes, a query keeps reading the version it started with.
+ * </p>
+ * */
+public final class PathIndex {
+
+	/** separates extension from the path in keys of {@link #byExtension}, sorts before any character of a path */
+	static final char EXT_SEPARATOR = '\0';
+
+	public static final PathIndex EMPTY = new PathIndex(null, null, 0);
+
+	/** all paths, key is the path string */
+	final Node byPath;
+	/** paths with an extension, key is extension + {@link #EXT_SEPARATOR} + path string */
+	final Node byExtension;
+	final int size;
+
+	PathIndex(Node byPath, Node byExtension, int size) {
+		this.byPath = byPath;
+		this.byExtension = byExtension;
+		this.size = size;
+	}
+
+	static final Comparator<Node> BY_KEY = new Comparator<Node>() {
+		@Override
+		public int compare(Node a, Node b) {
+			return a.key.compareTo(b.key);
+		}
+	};
+
+	/** Index of the paths, read it while the collection can not be changed */
+	static PathIndex of(Collection<Path> paths) {
+		List<Node> byPath = new ArrayList<>(paths.size());
+		List<Node> byExtension = new ArrayList<>();
+		for(Path path:paths) {
+			String name = path.toString();
+			byPath.add(new Node(name, path, priority(name), null, null));
+			String ext = extension(name);
+			if(ext == null) continue;
+			String key = ext + EXT_SEPARATOR + name;
+			byExtension.add(new Node(key, path, priority(key), null, null));
+		}
+		return new PathIndex(build(byPath), build(byExtension), byPath.size());
+	}
+
+	/** treap of the nodes with unique keys, linked in a single pass after sorting, faster than inserting one by one */
+	static Node build(List<Node> nodes) {
+		Node[] sorted = nodes.toArray(new Node[nodes.size()]);
+		Arrays.sort(sorted, BY_KEY);
+		int n = sorted.length;
+		int[] left = new int[n];
+		int[] right = new int[n];
+		// right edge of the tree built so far, the higher priority nodes lower in the stack
+		int[] stack = new int[n];
+		int top = 0;
+		for(int i=0; i<n; i++) {
+			int last = -1;
+			while(top > 0 && sorted[stack[top-1]].priority < sorted[i].priority) last = stack[--top];
+			left[i] = last;
+			right[i] = -1;
+			if(top > 0) right[stack[top-1]] = i;
+			stack[top++] = i;
+		}
+		return top == 0 ? null : link(sorted, left, right, stack[0]);
+	}
+
+	private static Node link(Node[] sorted, int[] left, int[] right, int i) {
+		if(i < 0) return null;
+		return sorted[i].with(link(sorted, left, right, left[i]), link(sorted, left, right, right[i]));
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/** @return index with the path added, or this one if already present */
+	PathIndex with(Path path) {
+		String name = path.toString();
+		Node changed = insert(byPath, name, path, priority(name));
+		if(changed == byPath) return this;
+
+		String ext = extension(name);
+		Node byExt = byExtension;
+		if(ext != null) {
+			String key = ext + EXT_SEPARATOR + name;
+			byExt = insert(byExt, key, path, priority(key));
+		}
+		return new PathIndex(changed, byExt, size + 1);
+	}
+
+	/** @return index without the path, or this one if not present */
+	PathIndex without(Path path) {
+		String name = path.toString();
+		Node changed = delete(byPath, name);
+		if(changed == byPath) return this;
+
+		String ext = extension(name);
+		Node byExt = byExtension;
+		if(ext != null) byExt = delete(byExt, ext + EXT_SEPARATOR + name);
+		return new PathIndex(changed, byExt, size - 1);
+	}
+
+	/** paths under the folder (all if empty), in path order */
+	Iterator<Path> under(String dir) {
+		if(dir.isEmpty()) return new Range(byPath, "", null);
+		return new Range(byPath, dir + File.separatorChar, dir + (char)(File.separatorChar + 1));
+	}
+
+	/** paths with the extension (without dot) under the folder (all if empty), in path order */
+	Iterator<Path> under(String ext, String dir) {
+		String prefix = ext + EXT_SEPARATOR;
+		if(dir.isEmpty()) return new Range(byExtension, prefix, ext + (char)(EXT_SEPARATOR + 1));
+		// strings starting with "dir/" sort before "dir" + next char after the separator
+		return new Range(byExtension, prefix + dir + File.separatorChar, prefix + dir + (char)(File.separatorChar + 1));
+	}
+
+	/** extension of the file name without dot, or null */
+	static String extension(String path) {
+		int dot = path.lastIndexOf('.');
+		if(dot == -1 || dot == path.length() - 1) return null;
+		int slash = path.lastIndexOf(File.separatorChar);
+		if(dot <= slash) return null;
+		return path.substring(dot + 1);
+	}
+
+	/** heap priority of the key, spread from its hash, the shape of the tree depends only on the keys and not on the order of changes */
+	static int priority(String key) {
+		int h = key.hashCode() * 0x9E3779B9;
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		return h ^ (h >>> 13);
+	}
+
+	static Node insert(Node node, String key, Path path, int priority) {
+		if(node == null) return new Node(key, path, priority, null, null);
+		int cmp = key.compareTo(node.key);
+		if(cmp == 0) return node;
+
+		if(cmp < 0) {
+			Node left = insert(node.left, key, path, priority);
+			if(left == node.left) return node;
+			// rotate right to keep the higher priority above
+			if(left.priority > node.priority) return left.with(left.left, node.with(left.right, node.right));
+			return node.with(left, node.right);
+		}
+		Node right = insert(node.right, key, path, priority);
+		if(right == node.right) return node;
+		if(right.priority > node.priority) return right.with(node.with(node.left, right.left), right.right);
+		return node.with(node.left, right);
+	}
+
+	static Node delete(Node node, String key) {
+		if(node == null) return null;
+		int cmp = key.compareTo(node.key);
+		if(cmp == 0) return merge(node.left, node.right);
+
+		if(cmp < 0) {
+			Node left = delete(node.left, key);
+			return left == node.left ? node : node.with(left, node.right);
+		}
+		Node right = delete(node.right, key);
+		return right == node.right ? node : node.with(node.left, right);
+	}
+
+	/** join two trees where all keys of the first are lower */
+	static Node merge(Node a, Node b) {
+		if(a == null) return b;
+		if(b == null) return a;
+		if(a.priority > b.priority) return a.with(a.left, merge(a.right, b));
+		return b.with(merge(a, b.left), b.right);
+	}
+
+	static final class Node {
+		final String key;
+		final Path path;
+		final int priority;
+		final Node left;
+		final Node right;
+
+		Node(String key, Path path, int priority, Node left, Node right) {
+			this.key = key;
+			this.path = path;
+			this.priority = priority;
+			this.left = left;
+			this.right = right;
+		}
+
+		Node with(Node left, Node right) {
+			return new Node(key, path, priority, left, right);
+		}
+	}
+
+	/** in order iteration over keys from (inclusive) to (exclusive, null for no limit) */
+	static final class Range implements Iterator<Path> {
+		final String to;
+		Node[] stack = new Node[32];
+		int depth;
+
+		Range(Node root, String from, String to) {
+			this.to = to;
+			// leave on the stack only nodes at or after from, the lowest on top
+			for(Node n = root; n != null; ) {
+				if(n.key.compareTo(from) >= 0) {
+					push(n);
+					n = n.left;
+				}else {
+					n = n.right;
+				}
+			}
+		}
+
+		private void push(Node n) {
+			if(depth == stack.length) stack = Arrays.copyOf(stack, depth * 2);
+			stack[depth++] = n;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return depth > 0 && (to == null || stack[depth - 1].key.compareTo(to) < 0);
+		}
+
+		@Override
+		public Path next() {
+			if(!hasNext()) throw new NoSuchElementException();
+			Node n = stack[--depth];
+			for(Node c = n.right; c != null; c = c.left) push(c);
+			return n.path;
+		}
+	}
+}
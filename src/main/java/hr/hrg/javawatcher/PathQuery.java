@@ -0,0 +1,157 @@
+package hr.hrg.javawatcher;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Query over matched files, answered from {@link PathIndex} without copying the matched set or reading the disk.
+ * <pre>
+ * for(Path p: matcher.query().under("assets/img").extension("png")) ...
+ * for(Path p: matcher.query().glob("**&#47;*.scss").exclude("**&#47;_*.scss")) ...
+ * </pre>
+ * Conditions are combined: paths must be under the folder, have the extension, match any of the globs,
+ * and match none of the excludes. The folder and the extension (also the ones taken from a single glob like
+ * {@code assets/**}{@code /*.scss}) select a range of the index, so only that part is read, other conditions are
+ * checked while iterating. Results are produced lazily, sorted by path within each matcher, and reflect the matched
+ * set at the time the query was created.
+ * */
+public class PathQuery implements Iterable<Path> {
+
+	protected final List<PathIndex> indexes;
+	protected String under = "";
+	protected String extension;
+	protected List<String> globs = new ArrayList<>();
+	protected CompiledGlobs includes = new CompiledGlobs();
+	protected CompiledGlobs excludes = new CompiledGlobs();
+
+	public PathQuery(List<PathIndex> indexes) {
+		this.indexes = indexes;
+	}
+
+	/** Only paths under the folder (relative to the matcher root) */
+	public PathQuery under(Path dir) {
+		return under(dir.toString());
+	}
+
+	/** Only paths under the folder (relative to the matcher root) */
+	public PathQuery under(String dir) {
+		while(dir.endsWith("/")) dir = dir.substring(0, dir.length()-1);
+		this.under = dir;
+		return this;
+	}
+
+	/** Only paths with the file extension, with or without the leading dot */
+	public PathQuery extension(String extension) {
+		this.extension = extension.startsWith(".") ? extension.substring(1) : extension;
+		return this;
+	}
+
+	/** Only paths matching any of the globs (or {@code regex:} rules), same syntax as {@link FileMatchGlob#includes(String...)} */
+	public PathQuery glob(String ... globs) {
+		for(String glob:globs) {
+			this.globs.add(glob);
+			includes.add(glob, makeRule(glob));
+		}
+		return this;
+	}
+
+	/** Leave out paths matching any of the globs */
+	public PathQuery exclude(String ... globs) {
+		for(String glob:globs) excludes.add(glob, makeRule(glob));
+		return this;
+	}
+
+	public List<Path> toList() {
+		List<Path> list = new ArrayList<>();
+		for(Path p:this) list.add(p);
+		return list;
+	}
+
+	public int count() {
+		int count = 0;
+		for(Iterator<Path> it = iterator(); it.hasNext(); it.next()) count++;
+		return count;
+	}
+
+	@Override
+	public Iterator<Path> iterator() {
+		final String prefix = narrowPrefix();
+		final String ext = narrowExtension();
+		return new Iterator<Path>() {
+			int indexNo = -1;
+			Iterator<Path> range = Collections.<Path>emptyIterator();
+			Path next;
+
+			{
+				advance();
+			}
+
+			private void advance() {
+				next = null;
+				while(true) {
+					while(range.hasNext()) {
+						Path path = range.next();
+						if(accept(path)) {
+							next = path;
+							return;
+						}
+					}
+					if(++indexNo == indexes.size()) return;
+
+					PathIndex index = indexes.get(indexNo);
+					range = ext == null ? index.under(prefix) : index.under(ext, prefix);
+				}
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public Path next() {
+				if(next == null) throw new NoSuchElementException();
+				Path path = next;
+				advance();
+				return path;
+			}
+		};
+	}
+
+	protected boolean accept(Path path) {
+		if(extension != null && !extension.equals(PathIndex.extension(path.toString()))) return false;
+		if(!includes.isEmpty() && !includes.matches(path)) return false;
+		return excludes.isEmpty() || !excludes.matches(path);
+	}
+
+	/** folder that all results are in, the more specific of {@link #under(String)} and the single glob prefix */
+	protected String narrowPrefix() {
+		if(globs.size() != 1 || !CompiledGlobs.SUPPORTED) return under;
+		String prefix = GlobDirRule.parse(globs.get(0)).getLiteralPrefix();
+		return under.isEmpty() || prefix.startsWith(under + "/") ? prefix : under;
+	}
+
+	/** extension that all results have, explicit or from a single glob ending with {@code *.ext} */
+	protected String narrowExtension() {
+		if(extension != null || globs.size() != 1 || !CompiledGlobs.SUPPORTED) return extension;
+		String glob = globs.get(0);
+		if(glob.startsWith("regex:")) return null;
+		// every match ends with the literal ".ext" of the last segment, so it has that extension
+		int dot = glob.lastIndexOf('.');
+		if(dot == -1 || dot < glob.lastIndexOf('/')) return null;
+		String ext = glob.substring(dot + 1);
+		if(ext.isEmpty() || !CompiledGlobs.isLiteral(ext, 0, ext.length())) return null;
+		return ext;
+	}
+
+	static PathMatcher makeRule(String rule) {
+		if(rule.startsWith("regex:")) return FileSystems.getDefault().getPathMatcher(rule);
+		return FileSystems.getDefault().getPathMatcher("glob:"+rule);
+	}
+}
@@ -0,0 +1,269 @@
+package hr.hrg.javawatcher;
+
+import java.nio.file.Path;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable set of paths, one version of a {@link VersionedPathSet}.
+ * <p>
+ * Stored as a hash array mapped trie: nodes are 32-way bitmap indexed arrays, and a change copies only the
+ * nodes on the path to the changed entry (about log32(n) small arrays). All other nodes are shared with the
+ * previous version, so a new version is cheap to make, and an existing one never changes.
+ * It is safe to read and iterate from any thread without locks. Iteration order follows the hash, not sorted.
+ * </p>
+ * */
+public final class PathSnapshot extends AbstractSet<Path> {
+
+	static final int BITS = 5;
+
+	public static final PathSnapshot EMPTY = new PathSnapshot(new Node(0, new Object[0]), 0, 0);
+
+	final Node root;
+	final int size;
+	final long generation;
+
+	PathSnapshot(Node root, int size, long generation) {
+		this.root = root;
+		this.size = size;
+		this.generation = generation;
+	}
+
+	/** Snapshot with the same paths as the collection, read it while it can not be changed */
+	static PathSnapshot copyOf(Collection<Path> paths, long generation) {
+		PathSnapshot snapshot = EMPTY;
+		for(Path path:paths) snapshot = snapshot.with(path, generation);
+		return snapshot.size == 0 ? new PathSnapshot(EMPTY.root, 0, generation) : snapshot;
+	}
+
+	/** Version number, increased by every change of the {@link VersionedPathSet} it came from */
+	public long getGeneration() {
+		return generation;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		if(!(o instanceof Path)) return false;
+		int hash = hash(o);
+		Object node = root;
+		for(int shift = 0; ; shift += BITS) {
+			if(node instanceof Node) {
+				Node n = (Node) node;
+				int bit = bit(hash, shift);
+				if((n.bitmap & bit) == 0) return false;
+				node = n.array[n.index(bit)];
+			}else if(node instanceof Collision) {
+				Collision c = (Collision) node;
+				return c.hash == hash && c.indexOf(o) >= 0;
+			}else {
+				return o.equals(node);
+			}
+		}
+	}
+
+	/** @return snapshot with the path added, or this one if already present */
+	PathSnapshot with(Path path, long generation) {
+		Object changed = with(root, path, hash(path), 0);
+		if(changed == root) return this;
+		return new PathSnapshot((Node) changed, size + 1, generation);
+	}
+
+	/** @return snapshot without the path, or this one if not present */
+	PathSnapshot without(Path path, long generation) {
+		Object changed = without(root, path, hash(path), 0);
+		if(changed == root) return this;
+		// the root stays a node, only a node below it collapses to its last entry
+		return new PathSnapshot(changed == null ? EMPTY.root : (Node) changed, size - 1, generation);
+	}
+
+	@Override
+	public Iterator<Path> iterator() {
+		return new Iterator<Path>() {
+			Object[][] arrays = new Object[8][];
+			int[] positions = new int[8];
+			int depth = 0;
+			Path next;
+
+			{
+				arrays[0] = root.array;
+				advance();
+			}
+
+			private void advance() {
+				next = null;
+				while(depth >= 0) {
+					Object[] array = arrays[depth];
+					if(positions[depth] == array.length) {
+						depth--;
+						continue;
+					}
+					Object e = array[positions[depth]++];
+					if(e instanceof Path) {
+						next = (Path) e;
+						return;
+					}
+					if(++depth == arrays.length) {
+						arrays = Arrays.copyOf(arrays, depth * 2);
+						positions = Arrays.copyOf(positions, depth * 2);
+					}
+					arrays[depth] = e instanceof Node ? ((Node) e).array : ((Collision) e).paths;
+					positions[depth] = 0;
+				}
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public Path next() {
+				if(next == null) throw new NoSuchElementException();
+				Path path = next;
+				advance();
+				return path;
+			}
+		};
+	}
+
+	static int hash(Object path) {
+		int h = path.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	static int bit(int hash, int shift) {
+		return 1 << ((hash >>> shift) & 31);
+	}
+
+	/** node holding only the entry, with its hash at the shift */
+	static Node single(Object entry, int shift) {
+		int hash = entry instanceof Collision ? ((Collision) entry).hash : hash(entry);
+		return new Node(bit(hash, shift), new Object[] {entry});
+	}
+
+	static Object with(Object node, Path path, int hash, int shift) {
+		if(node instanceof Collision) {
+			Collision c = (Collision) node;
+			if(c.hash != hash) return with(single(c, shift), path, hash, shift);
+			if(c.indexOf(path) >= 0) return c;
+			Path[] paths = Arrays.copyOf(c.paths, c.paths.length + 1);
+			paths[c.paths.length] = path;
+			return new Collision(hash, paths);
+		}
+
+		Node n = (Node) node;
+		int bit = bit(hash, shift);
+		int idx = n.index(bit);
+		if((n.bitmap & bit) == 0) {
+			Object[] array = new Object[n.array.length + 1];
+			System.arraycopy(n.array, 0, array, 0, idx);
+			array[idx] = path;
+			System.arraycopy(n.array, idx, array, idx + 1, n.array.length - idx);
+			return new Node(n.bitmap | bit, array);
+		}
+
+		Object e = n.array[idx];
+		Object changed;
+		if(e instanceof Path) {
+			if(e.equals(path)) return n;
+			changed = merge(e, hash(e), path, hash, shift + BITS);
+		}else {
+			changed = with(e, path, hash, shift + BITS);
+			if(changed == e) return n;
+		}
+		return n.replace(idx, changed);
+	}
+
+	/** node (or collision) for two different paths that share the hash bits above the shift */
+	static Object merge(Object a, int hashA, Path b, int hashB, int shift) {
+		if(hashA == hashB) return new Collision(hashA, new Path[] {(Path) a, b});
+		int bitA = bit(hashA, shift);
+		int bitB = bit(hashB, shift);
+		if(bitA == bitB) return new Node(bitA, new Object[] {merge(a, hashA, b, hashB, shift + BITS)});
+		return new Node(bitA | bitB, Integer.compareUnsigned(bitA, bitB) < 0 ? new Object[] {a, b} : new Object[] {b, a});
+	}
+
+	/** @return changed node, the same node if path is not there, a single remaining path, or null if empty */
+	static Object without(Object node, Path path, int hash, int shift) {
+		if(node instanceof Collision) {
+			Collision c = (Collision) node;
+			int i = c.hash == hash ? c.indexOf(path) : -1;
+			if(i < 0) return c;
+			if(c.paths.length == 2) return c.paths[1 - i];
+			Path[] paths = new Path[c.paths.length - 1];
+			System.arraycopy(c.paths, 0, paths, 0, i);
+			System.arraycopy(c.paths, i + 1, paths, i, paths.length - i);
+			return new Collision(hash, paths);
+		}
+
+		Node n = (Node) node;
+		int bit = bit(hash, shift);
+		if((n.bitmap & bit) == 0) return n;
+		int idx = n.index(bit);
+		Object e = n.array[idx];
+		Object changed;
+		if(e instanceof Path) {
+			if(!e.equals(path)) return n;
+			changed = null;
+		}else {
+			changed = without(e, path, hash, shift + BITS);
+			if(changed == e) return n;
+		}
+
+		if(changed == null) {
+			if(n.array.length == 1) return null;
+			// a lone path (not a sub node) moves up to the parent
+			if(n.array.length == 2 && shift > 0 && n.array[1 - idx] instanceof Path) return n.array[1 - idx];
+			Object[] array = new Object[n.array.length - 1];
+			System.arraycopy(n.array, 0, array, 0, idx);
+			System.arraycopy(n.array, idx + 1, array, idx, array.length - idx);
+			return new Node(n.bitmap & ~bit, array);
+		}
+		if(n.array.length == 1 && shift > 0 && !(changed instanceof Node)) return changed;
+		return n.replace(idx, changed);
+	}
+
+	static final class Node {
+		final int bitmap;
+		final Object[] array;
+
+		Node(int bitmap, Object[] array) {
+			this.bitmap = bitmap;
+			this.array = array;
+		}
+
+		int index(int bit) {
+			return Integer.bitCount(bitmap & (bit - 1));
+		}
+
+		Node replace(int idx, Object entry) {
+			Object[] copy = array.clone();
+			copy[idx] = entry;
+			return new Node(bitmap, copy);
+		}
+	}
+
+	/** paths with the same full hash */
+	static final class Collision {
+		final int hash;
+		final Path[] paths;
+
+		Collision(int hash, Path[] paths) {
+			this.hash = hash;
+			this.paths = paths;
+		}
+
+		int indexOf(Object path) {
+			for(int i=0; i<paths.length; i++) if(paths[i].equals(path)) return i;
+			return -1;
+		}
+	}
+}
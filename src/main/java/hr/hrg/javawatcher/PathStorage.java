@@ -0,0 +1,28 @@
+package hr.hrg.javawatcher;
+
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * How {@link FileMatchGlob} stores matched and excluded paths, see {@link FileMatchGlob#setStorage(PathStorage)}.
+ * */
+public enum PathStorage {
+	/** {@link TreeSet}, sorted, but each path is a separate object with a tree node */
+	TREE_SET,
+	/** {@link PathTrie}, memory compact for large sets, not sorted */
+	TRIE,
+	/** {@link OffHeapPathSet}, outside the Java heap to keep GC work low, not sorted */
+	OFF_HEAP,
+	/** {@link VersionedPathSet}, readers get immutable snapshots without locks, not sorted */
+	VERSIONED;
+
+	public Set<Path> newSet() {
+		switch (this) {
+		case TRIE: return new PathTrie();
+		case OFF_HEAP: return new OffHeapPathSet();
+		case VERSIONED: return new VersionedPathSet();
+		default: return new TreeSet<>();
+		}
+	}
+}
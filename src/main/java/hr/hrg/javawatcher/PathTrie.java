@@ -0,0 +1,401 @@
+package hr.hrg.javawatcher;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Memory compact set of paths, stored as a trie of interned name segments.
+ * <p>
+ * Nodes live in primitive arrays (name, parent, first child, siblings), and children are found through an open
+ * addressing hash of (parent, name) in primitive arrays, so there are no per-path objects. A path costs about
+ * 40 bytes per new segment instead of a {@link Path} object and a tree node per entry in a {@link java.util.TreeSet}.
+ * Shared folders are stored once, and each distinct name is stored once.
+ * </p><p>
+ * {@link Path} instances are created only while iterating. Iteration is depth first, but not sorted.
+ * {@link #removeSubtree(Path, Collection)} removes a folder with everything under it in time proportional to the subtree.
+ * Not thread safe.
+ * </p>
+ * */
+public class PathTrie extends AbstractSet<Path> {
+
+	static final int NONE = -1;
+	static final int ROOT = 0;
+	static final long EMPTY = -1;
+
+	/** interned name segments */
+	protected final Map<String, Integer> segmentIds = new HashMap<>();
+	protected String[] segments = new String[64];
+	protected int segmentCount;
+
+	/** nodes, node 0 is the root (parent of first segments) */
+	protected int[] name;
+	protected int[] parent;
+	protected int[] firstChild;
+	protected int[] next;
+	protected int[] prev;
+	protected boolean[] terminal;
+	protected int nodeCount;
+	protected int freeNode = NONE;
+
+	/** child index: key is (parent << 32 | name), value is the child node */
+	protected long[] keys;
+	protected int[] values;
+	protected int keyCount;
+
+	protected int size;
+	protected int modCount;
+
+	public PathTrie() {
+		clear();
+	}
+
+	public PathTrie(Collection<Path> paths) {
+		this();
+		addAll(paths);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public void clear() {
+		segmentIds.clear();
+		segments = new String[64];
+		segmentCount = 0;
+		name = new int[64];
+		parent = new int[64];
+		firstChild = new int[64];
+		next = new int[64];
+		prev = new int[64];
+		terminal = new boolean[64];
+		nodeCount = 1;
+		freeNode = NONE;
+		name[ROOT] = NONE;
+		parent[ROOT] = NONE;
+		firstChild[ROOT] = NONE;
+		next[ROOT] = NONE;
+		prev[ROOT] = NONE;
+		keys = new long[64];
+		Arrays.fill(keys, EMPTY);
+		values = new int[64];
+		keyCount = 0;
+		size = 0;
+		modCount++;
+	}
+
+	@Override
+	public boolean add(Path path) {
+		int node = ROOT;
+		int count = segmentCount(path);
+		for(int i=0; i<count; i++) {
+			int seg = intern(segment(path, i));
+			int child = child(node, seg);
+			node = child == NONE ? addChild(node, seg) : child;
+		}
+		if(terminal[node]) return false;
+		terminal[node] = true;
+		size++;
+		modCount++;
+		return true;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		if(!(o instanceof Path)) return false;
+		int node = find((Path) o);
+		return node != NONE && terminal[node];
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		if(!(o instanceof Path)) return false;
+		int node = find((Path) o);
+		if(node == NONE || !terminal[node]) return false;
+		terminal[node] = false;
+		size--;
+		modCount++;
+		prune(node);
+		return true;
+	}
+
+	/**
+	 * Remove the path and all paths under it.
+	 *
+	 * @param removed collects removed paths, can be null
+	 * @return number of removed paths
+	 * */
+	public int removeSubtree(Path dir, Collection<Path> removed) {
+		int top = find(dir);
+		if(top == NONE) return 0;
+
+		int count = 0;
+		int[] stack = new int[16];
+		int sp = 0;
+		stack[sp++] = top;
+		while(sp > 0) {
+			int node = stack[--sp];
+			if(terminal[node]) {
+				if(removed != null) removed.add(toPath(node));
+				count++;
+			}
+			for(int c = firstChild[node]; c != NONE; c = next[c]) {
+				if(sp == stack.length) stack = Arrays.copyOf(stack, sp * 2);
+				stack[sp++] = c;
+			}
+		}
+
+		if(top == ROOT) {
+			clear();
+			return count;
+		}
+		int up = parent[top];
+		freeSubtree(top);
+		size -= count;
+		modCount++;
+		prune(up);
+		return count;
+	}
+
+	@Override
+	public Iterator<Path> iterator() {
+		return new Iterator<Path>() {
+			int[] stack = new int[16];
+			int sp;
+			int nextNode = NONE;
+			Path last;
+			int expectedMod = modCount;
+
+			{
+				push(ROOT);
+				advance();
+			}
+
+			private void push(int node) {
+				if(sp == stack.length) stack = Arrays.copyOf(stack, sp * 2);
+				stack[sp++] = node;
+			}
+
+			private void advance() {
+				nextNode = NONE;
+				while(sp > 0) {
+					int node = stack[--sp];
+					for(int c = firstChild[node]; c != NONE; c = next[c]) push(c);
+					if(terminal[node]) {
+						nextNode = node;
+						return;
+					}
+				}
+			}
+
+			@Override
+			public boolean hasNext() {
+				return nextNode != NONE;
+			}
+
+			@Override
+			public Path next() {
+				if(modCount != expectedMod) throw new ConcurrentModificationException();
+				if(nextNode == NONE) throw new NoSuchElementException();
+				last = toPath(nextNode);
+				advance();
+				return last;
+			}
+
+			@Override
+			public void remove() {
+				if(last == null) throw new IllegalStateException();
+				if(modCount != expectedMod) throw new ConcurrentModificationException();
+				// only the removed leaf and its now empty parents are freed, nodes on the stack stay valid
+				PathTrie.this.remove(last);
+				expectedMod = modCount;
+				last = null;
+			}
+		};
+	}
+
+	/** node for the path, or NONE */
+	protected int find(Path path) {
+		int node = ROOT;
+		int count = segmentCount(path);
+		for(int i=0; i<count && node != NONE; i++) {
+			Integer seg = segmentIds.get(segment(path, i));
+			if(seg == null) return NONE;
+			node = child(node, seg);
+		}
+		return node;
+	}
+
+	protected Path toPath(int node) {
+		int depth = 0;
+		for(int n = node; n != ROOT; n = parent[n]) depth++;
+		if(depth == 0) return Paths.get("");
+
+		String[] names = new String[depth];
+		for(int n = node; n != ROOT; n = parent[n]) names[--depth] = segments[name[n]];
+		return Paths.get(names[0], Arrays.copyOfRange(names, 1, names.length));
+	}
+
+	/** absolute paths have the root (like "/") as the first segment */
+	static int segmentCount(Path path) {
+		return path.getNameCount() + (path.getRoot() == null ? 0 : 1);
+	}
+
+	static String segment(Path path, int i) {
+		Path root = path.getRoot();
+		if(root == null) return path.getName(i).toString();
+		return i == 0 ? root.toString() : path.getName(i-1).toString();
+	}
+
+	protected int intern(String seg) {
+		Integer id = segmentIds.get(seg);
+		if(id != null) return id;
+		if(segmentCount == segments.length) segments = Arrays.copyOf(segments, segmentCount * 2);
+		segments[segmentCount] = seg;
+		segmentIds.put(seg, segmentCount);
+		return segmentCount++;
+	}
+
+	protected int addChild(int node, int seg) {
+		int child;
+		if(freeNode != NONE) {
+			child = freeNode;
+			freeNode = next[child];
+		}else {
+			if(nodeCount == name.length) growNodes();
+			child = nodeCount++;
+		}
+		name[child] = seg;
+		parent[child] = node;
+		firstChild[child] = NONE;
+		terminal[child] = false;
+		prev[child] = NONE;
+		next[child] = firstChild[node];
+		if(firstChild[node] != NONE) prev[firstChild[node]] = child;
+		firstChild[node] = child;
+		putKey(key(node, seg), child);
+		return child;
+	}
+
+	/** free empty nodes from this one up */
+	protected void prune(int node) {
+		while(node != ROOT && !terminal[node] && firstChild[node] == NONE) {
+			int up = parent[node];
+			freeSubtree(node);
+			node = up;
+		}
+	}
+
+	/** unlink the node from its parent, and free it with all nodes under it */
+	protected void freeSubtree(int top) {
+		int p = parent[top];
+		if(prev[top] != NONE) {
+			next[prev[top]] = next[top];
+		}else {
+			firstChild[p] = next[top];
+		}
+		if(next[top] != NONE) prev[next[top]] = prev[top];
+
+		int[] stack = new int[16];
+		int sp = 0;
+		stack[sp++] = top;
+		while(sp > 0) {
+			int node = stack[--sp];
+			for(int c = firstChild[node]; c != NONE; c = next[c]) {
+				if(sp == stack.length) stack = Arrays.copyOf(stack, sp * 2);
+				stack[sp++] = c;
+			}
+			removeKey(key(parent[node], name[node]));
+			terminal[node] = false;
+			firstChild[node] = NONE;
+			parent[node] = NONE;
+			next[node] = freeNode;
+			freeNode = node;
+		}
+	}
+
+	private void growNodes() {
+		int cap = name.length + (name.length >> 1);
+		name = Arrays.copyOf(name, cap);
+		parent = Arrays.copyOf(parent, cap);
+		firstChild = Arrays.copyOf(firstChild, cap);
+		next = Arrays.copyOf(next, cap);
+		prev = Arrays.copyOf(prev, cap);
+		terminal = Arrays.copyOf(terminal, cap);
+	}
+
+	static long key(int node, int seg) {
+		return ((long)node << 32) | (seg & 0xFFFFFFFFL);
+	}
+
+	static int slot(long key, int mask) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32)) & mask;
+	}
+
+	protected int child(int node, int seg) {
+		long key = key(node, seg);
+		int mask = keys.length - 1;
+		for(int i = slot(key, mask); ; i = (i + 1) & mask) {
+			if(keys[i] == key) return values[i];
+			if(keys[i] == EMPTY) return NONE;
+		}
+	}
+
+	private void putKey(long key, int value) {
+		if((keyCount + 1) * 3 > keys.length * 2) rehash(keys.length * 2);
+		int mask = keys.length - 1;
+		int i = slot(key, mask);
+		while(keys[i] != EMPTY) i = (i + 1) & mask;
+		keys[i] = key;
+		values[i] = value;
+		keyCount++;
+	}
+
+	/** linear probing delete with backward shift, so lookups need no tombstones */
+	private void removeKey(long key) {
+		int mask = keys.length - 1;
+		int i = slot(key, mask);
+		while(keys[i] != key) {
+			if(keys[i] == EMPTY) return;
+			i = (i + 1) & mask;
+		}
+		keys[i] = EMPTY;
+		keyCount--;
+		for(int j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+			int home = slot(keys[j], mask);
+			// move back unless the home slot is cyclically in (i, j]
+			boolean stay = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+			if(stay) continue;
+			keys[i] = keys[j];
+			values[i] = values[j];
+			keys[j] = EMPTY;
+			i = j;
+		}
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		keys = new long[capacity];
+		Arrays.fill(keys, EMPTY);
+		values = new int[capacity];
+		int mask = capacity - 1;
+		for(int j=0; j<oldKeys.length; j++) {
+			if(oldKeys[j] == EMPTY) continue;
+			int i = slot(oldKeys[j], mask);
+			while(keys[i] != EMPTY) i = (i + 1) & mask;
+			keys[i] = oldKeys[j];
+			values[i] = oldValues[j];
+		}
+	}
+}
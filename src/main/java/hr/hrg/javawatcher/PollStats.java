@@ -0,0 +1,111 @@
+package hr.hrg.javawatcher;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for {@link PollingWatcher}, to see the I/O and time polling costs and tune its settings.
+ * */
+public class PollStats {
+
+	/** poll cycles done */
+	protected final AtomicLong cycles = new AtomicLong();
+	/** stat calls for folders and files, in all cycles */
+	protected final AtomicLong stats = new AtomicLong();
+	/** folders listed because their modification time changed, or they are new */
+	protected final AtomicLong listings = new AtomicLong();
+	/** changes found */
+	protected final AtomicLong changes = new AtomicLong();
+	/** {@link WatchMode#HYBRID}: folders moved from polling to a native watch */
+	protected final AtomicLong promotions = new AtomicLong();
+	/** {@link WatchMode#HYBRID}: folders moved from a native watch back to polling */
+	protected final AtomicLong demotions = new AtomicLong();
+	/** folders with a native watch now */
+	protected volatile long watched;
+	/** folders polled now */
+	protected volatile long polled;
+	/** changed or new folders waiting to be listed in the next cycle, because of the folder budget */
+	protected volatile long pending;
+	protected volatile long lastCycleChecks;
+	protected volatile long lastCycleListings;
+	protected volatile long lastCycleSweeps;
+	protected volatile long lastCycleStats;
+	protected volatile long lastCycleNanos;
+	protected volatile long interval;
+
+	public long getCycles() {
+		return cycles.get();
+	}
+
+	public long getStats() {
+		return stats.get();
+	}
+
+	public long getListings() {
+		return listings.get();
+	}
+
+	public long getChanges() {
+		return changes.get();
+	}
+
+	public long getPromotions() {
+		return promotions.get();
+	}
+
+	public long getDemotions() {
+		return demotions.get();
+	}
+
+	/** folders with a native watch, after the last cycle */
+	public long getWatched() {
+		return watched;
+	}
+
+	/** folders checked by polling, after the last cycle */
+	public long getPolled() {
+		return polled;
+	}
+
+	/** changed or new folders left for the next cycle, after the last cycle */
+	public long getPending() {
+		return pending;
+	}
+
+	/** folders checked for a changed modification time in the last cycle */
+	public long getLastCycleChecks() {
+		return lastCycleChecks;
+	}
+
+	/** folders listed in the last cycle */
+	public long getLastCycleListings() {
+		return lastCycleListings;
+	}
+
+	/** files of unchanged folders checked in the last cycle */
+	public long getLastCycleSweeps() {
+		return lastCycleSweeps;
+	}
+
+	/** stat calls in the last cycle */
+	public long getLastCycleStats() {
+		return lastCycleStats;
+	}
+
+	/** duration of the last cycle */
+	public long getLastCycleNanos() {
+		return lastCycleNanos;
+	}
+
+	/** (ms) current interval between cycles */
+	public long getInterval() {
+		return interval;
+	}
+
+	@Override
+	public String toString() {
+		return "cycles:"+cycles+" stats:"+stats+" listings:"+listings+" changes:"+changes
+				+" watched:"+watched+" polled:"+polled+" promotions:"+promotions+" demotions:"+demotions+" pending:"+pending
+				+" lastCycleChecks:"+lastCycleChecks+" lastCycleListings:"+lastCycleListings+" lastCycleSweeps:"+lastCycleSweeps
+				+" lastCycleStats:"+lastCycleStats+" lastCycleMs:"+lastCycleNanos/1000000+" interval:"+interval;
+	}
+}
@@ -0,0 +1,766 @@
+package hr.hrg.javawatcher;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stat based change detection for matchers with {@link WatchMode#POLL}, for file systems where native events
+ * never arrive (NFS, some container overlay file systems).
+ * <p>
+ * Every scanned folder has a compact entry with its modification time and sorted arrays of names, sizes and
+ * modification times of matched files. A cycle checks folder modification times first, and only folders that changed
+ * are listed again. Writing a file in place does not change the folder modification time, so each cycle also checks
+ * files of some unchanged folders, up to the stat budget, continuing where the previous cycle stopped.
+ * Stat calls are done in parallel, and the table is updated and changes dispatched only from the poll thread.
+ * </p><p>
+ * Folder checks and listings share the folder budget. When a tree has more folders than the budget, the checks
+ * continue in the next cycle where this one stopped, and changed folders that do not fit wait for the next cycle,
+ * before any checks. New folders are listed the same way, so a large folder moved into the tree is spread over cycles.
+ * A listing is counted as the entries the folder had when it was last listed (a new folder counts as one), and at
+ * least one folder is listed per cycle. Folders with a native watch are listed after an event outside of the budget,
+ * as their number is limited by the watch budget.
+ * </p><p>
+ * The interval is the minimum after a cycle with changes, and grows by half after each quiet cycle up to the maximum.
+ * Work done is counted in {@link PollStats}.
+ * </p><p>
+ * For matchers with {@link WatchMode#HYBRID} folders where polling finds changes get a native watch, while the number
+ * of native watches is within the budget (see {@link #enableHybrid(WatchService, int, long)}). Watched folders are
+ * not polled, an event for them makes the next cycle start right away and list them again. When the budget is used up,
+ * the watch idle for the longest time is moved back to polling, if it was idle for at least the minimum time.
+ * </p>
+ * */
+public class PollingWatcher<T> implements AutoCloseable {
+
+	/** folders checked by one parallel task */
+	static final int CHUNK = 256;
+	/** (ms) delay of the cycle after a native event, to pick up more events in the same cycle */
+	static final long EVENT_DELAY = 10;
+
+	protected final FolderWatcher<T> watcher;
+	protected final List<Tree<T>> trees = new ArrayList<>();
+	protected final PollStats stats;
+	protected final long minInterval;
+	protected final long maxInterval;
+	protected final int statBudget;
+	protected final int folderBudget;
+	protected final ScheduledExecutorService scheduler;
+	protected final ExecutorService statPool;
+
+	protected long interval;
+	/** tree where the sweep of unchanged folders continues */
+	protected int sweepTree;
+	/** tree where the check of folder modification times continues */
+	protected int checkTree;
+	/** folder stat calls left in the current cycle */
+	protected int folderLeft;
+	/** folders listed in the current cycle */
+	protected int cycleListings;
+	protected volatile boolean closed;
+	protected ScheduledFuture<?> next;
+
+	/** native watches for {@link WatchMode#HYBRID}, null if not enabled */
+	protected WatchService watchService;
+	protected int watchBudget;
+	protected long minIdle;
+	/** folders with a native watch, changed only from the poll thread */
+	protected final Map<Path, HotDir> hot = new HashMap<>();
+	protected final Map<WatchKey, HotDir> keys = new ConcurrentHashMap<>();
+	/** watched folders with events, waiting for the next cycle */
+	protected final Queue<HotDir> dirty = new ConcurrentLinkedQueue<>();
+
+	private final Runnable poll = new Runnable() {
+		@Override
+		public void run() {
+			poll();
+		}
+	};
+
+	/**
+	 * @param minInterval (ms) interval after a cycle with changes
+	 * @param maxInterval (ms) longest interval when there are no changes
+	 * @param parallelism threads doing stat calls
+	 * @param statBudget max file stat calls per cycle for folders that did not change
+	 * @param folderBudget max stat calls per cycle for folder modification times and listings of changed folders
+	 * */
+	public PollingWatcher(FolderWatcher<T> watcher, Collection<? extends FileMatcher<T>> matchers, long minInterval, long maxInterval, int parallelism, int statBudget, int folderBudget, PollStats stats) {
+		this.watcher = watcher;
+		this.minInterval = minInterval;
+		this.maxInterval = Math.max(minInterval, maxInterval);
+		this.statBudget = statBudget;
+		this.folderBudget = Math.max(1, folderBudget);
+		this.stats = stats;
+		this.interval = minInterval;
+		for(FileMatcher<T> matcher:matchers) trees.add(new Tree<T>(matcher));
+		scheduler = Executors.newSingleThreadScheduledExecutor(watcher.daemonFactory("poll"));
+		statPool = Executors.newFixedThreadPool(Math.max(1, parallelism), watcher.daemonFactory("poll stat"));
+	}
+
+	/**
+	 * Use native watches for folders of {@link WatchMode#HYBRID} matchers that had changes. Call before {@link #start()}.
+	 *
+	 * @param watchService used to register single folders (not recursive), must be from the file system of the folders
+	 * @param watchBudget max folders with a native watch
+	 * @param minIdle (ms) a watched folder is moved back to polling to make room for another only if idle this long
+	 * */
+	public void enableHybrid(WatchService watchService, int watchBudget, long minIdle) {
+		this.watchService = watchService;
+		this.watchBudget = watchBudget;
+		this.minIdle = minIdle;
+	}
+
+	/** Build the table for all matchers and start polling */
+	public void start() {
+		for(Tree<T> tree:trees) scan(tree, tree.root);
+		stats.interval = interval;
+		updateCounts();
+		scheduleNext(interval);
+
+		if(watchService != null) {
+			watcher.newThread(new Runnable() {
+				@Override
+				public void run() {
+					takeEvents();
+				}
+			}, "poll events").start();
+		}
+	}
+
+	protected synchronized void scheduleNext(long delay) {
+		if(closed) return;
+		if(next != null) next.cancel(false);
+		try {
+			next = scheduler.schedule(poll, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// closed
+		}
+	}
+
+	/** start the next cycle soon, unless it is running now (it checks {@link #dirty} when done) */
+	protected synchronized void trigger() {
+		if(next != null && next.getDelay(TimeUnit.MILLISECONDS) > EVENT_DELAY) scheduleNext(EVENT_DELAY);
+	}
+
+	protected void takeEvents() {
+		try {
+			while(!closed) {
+				WatchKey key = watchService.take();
+				key.pollEvents();
+				boolean valid = key.reset();
+				HotDir hotDir = keys.get(key);
+				if(hotDir == null) continue;
+				hotDir.lastActivity = System.currentTimeMillis();
+				if(!valid) hotDir.invalid = true;
+				dirty.add(hotDir);
+				trigger();
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// closed
+		}
+	}
+
+	protected void poll() {
+		if(closed) return;
+		try {
+			int changes = cycle();
+			interval = changes > 0 || stats.pending > 0 ? minInterval : Math.min(maxInterval, interval + interval/2);
+		} catch (InterruptedException e) {
+			return;
+		} catch (Exception e) {
+			Main.logError("Poll cycle failed", e);
+		}
+		stats.interval = interval;
+		scheduleNext(dirty.isEmpty() ? interval : EVENT_DELAY);
+	}
+
+	/**
+	 * One poll cycle, called from the poll thread.
+	 *
+	 * @return number of changes found
+	 * */
+	protected int cycle() throws InterruptedException, ExecutionException {
+		long start = System.nanoTime();
+		long statsBefore = stats.stats.get();
+		folderLeft = folderBudget;
+		cycleListings = 0;
+
+		List<DirCheck<T>> gone = new ArrayList<>();
+		List<Callable<DirUpdate<T>>> updates = new ArrayList<>();
+		addDirty(updates, gone);
+		// changed folders that did not fit in the budget of earlier cycles go first
+		addListings(updates);
+
+		// folder modification times
+		List<Callable<List<DirCheck<T>>>> checks = new ArrayList<>();
+		int checked = addChecks(checks);
+		for(Future<List<DirCheck<T>>> future:statPool.invokeAll(checks)) {
+			for(DirCheck<T> check:future.get()) {
+				if(check.attrs == null) {
+					gone.add(check);
+				}else if(TreeSnapshot.toNanos(check.attrs) != check.tree.dirs.get(check.dir).mtime) {
+					check.tree.pending.put(check.dir, check.attrs);
+				}
+			}
+		}
+		addListings(updates);
+		int swept = addSweeps(updates);
+
+		int changes = 0;
+		for(DirCheck<T> check:gone) changes += remove(check.tree, check.dir);
+		for(Tree<T> tree:trees) {
+			// root was deleted, and is back
+			if(!tree.dirs.isEmpty()) continue;
+			stats.stats.incrementAndGet();
+			if(TreeSnapshot.readAttributes(tree.root) != null) added(tree, tree.root);
+		}
+		addListings(updates);
+
+		// new folders found by listings are listed in the same cycle, while within the budget
+		while(!updates.isEmpty()) {
+			for(Future<DirUpdate<T>> future:statPool.invokeAll(updates)) {
+				DirUpdate<T> update = future.get();
+				int dirChanges = apply(update);
+				if(dirChanges > 0 && update.tree.hybrid) active(update.dir);
+				changes += dirChanges;
+			}
+			updates = new ArrayList<>();
+			addListings(updates);
+		}
+
+		long pending = 0;
+		for(Tree<T> tree:trees) {
+			tree.changed.clear();
+			pending += tree.pending.size();
+		}
+
+		updateCounts();
+		stats.cycles.incrementAndGet();
+		stats.changes.addAndGet(changes);
+		stats.pending = pending;
+		stats.lastCycleChecks = checked;
+		stats.lastCycleListings = cycleListings;
+		stats.lastCycleSweeps = swept;
+		stats.lastCycleStats = stats.stats.get() - statsBefore;
+		stats.lastCycleNanos = System.nanoTime() - start;
+		return changes;
+	}
+
+	/**
+	 * Folders to check for a changed modification time, up to the folder budget, continuing where the previous
+	 * cycle stopped.
+	 *
+	 * @return number of folders to check
+	 * */
+	protected int addChecks(List<Callable<List<DirCheck<T>>>> checks) {
+		int count = 0;
+		int first = checkTree;
+		for(int t=0; t<trees.size() && folderLeft > 0; t++) {
+			Tree<T> tree = trees.get((first + t) % trees.size());
+			if(tree.checkOrder == null) tree.checkOrder = new ArrayList<>(tree.dirs.keySet());
+
+			List<Path> dirs = new ArrayList<>();
+			while(folderLeft > 0 && tree.checkCursor < tree.checkOrder.size()) {
+				Path dir = tree.checkOrder.get(tree.checkCursor++);
+				if(!tree.dirs.containsKey(dir) || tree.changed.contains(dir) || tree.pending.containsKey(dir)) continue;
+				if(tree.hybrid && hot.containsKey(dir)) continue;
+				dirs.add(dir);
+				folderLeft--;
+			}
+			for(int i=0; i<dirs.size(); i+=CHUNK) {
+				checks.add(new CheckTask<T>(tree, dirs.subList(i, Math.min(dirs.size(), i+CHUNK)), stats));
+			}
+			count += dirs.size();
+
+			if(tree.checkCursor >= tree.checkOrder.size()) {
+				// start again next cycle, with folders added meanwhile
+				tree.checkOrder = null;
+				tree.checkCursor = 0;
+				checkTree = (first + t + 1) % trees.size();
+			}
+		}
+		return count;
+	}
+
+	/** List changed and new folders, up to the folder budget. The rest stay pending for the next cycle */
+	protected void addListings(List<Callable<DirUpdate<T>>> updates) {
+		for(Tree<T> tree:trees) {
+			Iterator<Entry<Path, BasicFileAttributes>> it = tree.pending.entrySet().iterator();
+			while(it.hasNext()) {
+				Entry<Path, BasicFileAttributes> e = it.next();
+				DirState state = tree.dirs.get(e.getKey());
+				int cost = state == null ? 0 : state.entries + 1;
+				// at least one per cycle, so a folder larger than the budget is not stuck
+				if(cost > folderLeft && cycleListings > 0) return;
+				it.remove();
+				if(state == null || !tree.changed.add(e.getKey())) continue;
+				folderLeft -= cost;
+				cycleListings++;
+				updates.add(new ListTask<T>(tree, e.getKey(), e.getValue(), stats));
+			}
+		}
+	}
+
+	/** List watched folders that had events */
+	protected void addDirty(List<Callable<DirUpdate<T>>> updates, List<DirCheck<T>> gone) {
+		Set<HotDir> done = new HashSet<>();
+		HotDir hotDir;
+		while((hotDir = dirty.poll()) != null) {
+			if(!done.add(hotDir) || hot.get(hotDir.dir) != hotDir) continue;
+
+			BasicFileAttributes attrs = TreeSnapshot.readAttributes(hotDir.dir);
+			stats.stats.incrementAndGet();
+			if(hotDir.invalid || attrs == null || !attrs.isDirectory()) demote(hotDir);
+			if(attrs != null && !attrs.isDirectory()) attrs = null;
+
+			for(Tree<T> tree:trees) {
+				if(!tree.hybrid || !tree.dirs.containsKey(hotDir.dir) || !tree.changed.add(hotDir.dir)) continue;
+				if(attrs == null) {
+					gone.add(new DirCheck<T>(tree, hotDir.dir, null));
+				}else {
+					updates.add(new ListTask<T>(tree, hotDir.dir, attrs, stats));
+				}
+			}
+		}
+	}
+
+	/** Folder had changes, keep it watched or try to start watching it */
+	protected void active(Path dir) {
+		if(watchService == null) return;
+		HotDir hotDir = hot.get(dir);
+		if(hotDir != null) {
+			hotDir.lastActivity = System.currentTimeMillis();
+			return;
+		}
+		if(hot.size() >= watchBudget && !demoteIdlest()) return;
+
+		try {
+			WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+			hotDir = new HotDir(dir, key);
+			hot.put(dir, hotDir);
+			keys.put(key, hotDir);
+			stats.promotions.incrementAndGet();
+		} catch (IOException e) {
+			// OS limit reached before the budget (for example fs.inotify.max_user_watches), stay within what we have
+			Main.logWarn("Unable to watch "+dir+", limiting watch budget to "+hot.size()+": "+e.getMessage());
+			watchBudget = hot.size();
+		} catch (RuntimeException e) {
+			// watch service of another provider (ProviderMismatchException) or not able to watch single folders,
+			// changes of this poll cycle are still reported by polling
+			Main.logWarn("Unable to watch "+dir+" with "+watchService.getClass().getName()+", polling only: "+e);
+			watchBudget = hot.size();
+		}
+	}
+
+	/** Move the watched folder idle for the longest time back to polling, if it was idle for at least {@link #minIdle} */
+	protected boolean demoteIdlest() {
+		HotDir idlest = null;
+		for(HotDir hotDir:hot.values()) {
+			if(idlest == null || hotDir.lastActivity < idlest.lastActivity) idlest = hotDir;
+		}
+		if(idlest == null || System.currentTimeMillis() - idlest.lastActivity < minIdle) return false;
+		demote(idlest);
+		return true;
+	}
+
+	protected void demote(HotDir hotDir) {
+		if(hot.get(hotDir.dir) != hotDir) return;
+		hotDir.key.cancel();
+		hot.remove(hotDir.dir);
+		keys.remove(hotDir.key);
+		stats.demotions.incrementAndGet();
+	}
+
+	protected void updateCounts() {
+		long dirs = 0;
+		for(Tree<T> tree:trees) dirs += tree.dirs.size();
+		stats.watched = hot.size();
+		stats.polled = dirs - hot.size();
+	}
+
+	/**
+	 * Check files of unchanged folders, up to {@link #statBudget} stat calls.
+	 *
+	 * @return number of files to check
+	 * */
+	protected int addSweeps(List<Callable<DirUpdate<T>>> updates) {
+		int budget = statBudget;
+		int first = sweepTree;
+		for(int t=0; t<trees.size() && budget > 0; t++) {
+			Tree<T> tree = trees.get((first + t) % trees.size());
+			if(tree.sweepOrder == null) tree.sweepOrder = new ArrayList<>(tree.dirs.keySet());
+
+			while(budget > 0 && tree.sweepCursor < tree.sweepOrder.size()) {
+				Path dir = tree.sweepOrder.get(tree.sweepCursor++);
+				DirState state = tree.dirs.get(dir);
+				if(state == null || tree.changed.contains(dir) || tree.pending.containsKey(dir) || state.names.length == 0) continue;
+				if(tree.hybrid && hot.containsKey(dir)) continue;
+				budget -= state.names.length;
+				updates.add(new SweepTask<T>(tree, dir, state, stats));
+			}
+			if(tree.sweepCursor >= tree.sweepOrder.size()) {
+				// start again next cycle, with folders added meanwhile
+				tree.sweepOrder = null;
+				tree.sweepCursor = 0;
+				sweepTree = (first + t + 1) % trees.size();
+			}
+		}
+		return statBudget - budget;
+	}
+
+	protected int apply(DirUpdate<T> update) {
+		Tree<T> tree = update.tree;
+		DirState old = tree.dirs.get(update.dir);
+		if(old == null) return 0; // removed with its parent
+		if(update.state == null) return remove(tree, update.dir);
+
+		DirState state = update.state;
+		int changes = 0;
+		int i = 0, j = 0;
+		while(i < old.names.length || j < state.names.length) {
+			int cmp = i == old.names.length ? 1 : j == state.names.length ? -1 : old.names[i].compareTo(state.names[j]);
+			if(cmp < 0) {
+				dispatch(tree, update.dir.resolve(old.names[i++]), FileChangeType.DELETE);
+				changes++;
+			}else if(cmp > 0) {
+				dispatch(tree, update.dir.resolve(state.names[j++]), FileChangeType.CREATE);
+				changes++;
+			}else {
+				if(old.sizes[i] != state.sizes[j] || old.mtimes[i] != state.mtimes[j]) {
+					dispatch(tree, update.dir.resolve(state.names[j]), FileChangeType.MODIFY);
+					changes++;
+				}
+				i++;
+				j++;
+			}
+		}
+		tree.dirs.put(update.dir, state);
+
+		if(state.subDirs != old.subDirs) {
+			for(String sub:old.subDirs) {
+				if(Arrays.binarySearch(state.subDirs, sub) < 0) changes += remove(tree, update.dir.resolve(sub));
+			}
+			for(String sub:state.subDirs) {
+				if(Arrays.binarySearch(old.subDirs, sub) < 0) added(tree, update.dir.resolve(sub));
+			}
+		}
+		return changes;
+	}
+
+	/** Remove the folder and its sub-folders from the table, with DELETE for their files */
+	protected int remove(Tree<T> tree, Path dir) {
+		int changes = 0;
+		Deque<Path> todo = new ArrayDeque<>();
+		todo.add(dir);
+		while(!todo.isEmpty()) {
+			Path current = todo.poll();
+			tree.pending.remove(current);
+			DirState state = tree.dirs.remove(current);
+			if(state == null) continue;
+			HotDir hotDir = hot.get(current);
+			if(hotDir != null && tree.hybrid) demote(hotDir);
+			for(String name:state.names) {
+				dispatch(tree, current.resolve(name), FileChangeType.DELETE);
+				changes++;
+			}
+			for(String sub:state.subDirs) todo.add(current.resolve(sub));
+		}
+		return changes;
+	}
+
+	/**
+	 * New folder, listed within the folder budget with CREATE for its files. Its sub-folders are added the same way
+	 * when it is listed.
+	 * */
+	protected void added(Tree<T> tree, Path dir) {
+		if(tree.dirs.containsKey(dir)) return;
+		tree.dirs.put(dir, DirState.NEW);
+		tree.pending.put(dir, null);
+	}
+
+	/** Add the folder and its sub-folders to the table, without changes */
+	protected void scan(Tree<T> tree, Path dir) {
+		Deque<Path> todo = new ArrayDeque<>();
+		todo.add(dir);
+		while(!todo.isEmpty()) {
+			Path current = todo.poll();
+			BasicFileAttributes attrs = TreeSnapshot.readAttributes(current);
+			stats.stats.incrementAndGet();
+			if(attrs == null || !attrs.isDirectory()) continue;
+
+			DirState state = list(tree.matcher, current, attrs, stats);
+			if(state == null) continue;
+			tree.dirs.put(current, state);
+			for(String sub:state.subDirs) todo.add(current.resolve(sub));
+		}
+	}
+
+	protected void dispatch(Tree<T> tree, Path path, FileChangeType type) {
+		watcher.dispatch(path, type, tree.single);
+	}
+
+	/**
+	 * List the folder, and stat every entry.
+	 *
+	 * @param attrs attributes of the folder, read before listing so changes during listing are seen in the next cycle
+	 * @return state, or null if the folder can not be listed
+	 * */
+	static DirState list(FileMatcher<?> matcher, Path dir, BasicFileAttributes attrs, PollStats stats) {
+		TreeMap<String, BasicFileAttributes> files = new TreeMap<>();
+		List<String> subDirs = new ArrayList<>();
+		int entries = 0;
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)){
+			for(Path path:stream) {
+				entries++;
+				BasicFileAttributes entry = TreeSnapshot.readAttributes(path);
+				stats.stats.incrementAndGet();
+				if(entry == null) continue;
+				if(entry.isDirectory()) {
+					if(FolderWatcher.isDirScanned(matcher, path)) subDirs.add(path.getFileName().toString());
+				}else if(matcher.isMatch(matcher.relativize(path))) {
+					files.put(path.getFileName().toString(), entry);
+				}
+			}
+		} catch (IOException e) {
+			return null;
+		}
+		stats.listings.incrementAndGet();
+
+		DirState state = new DirState(TreeSnapshot.toNanos(attrs), files.size(), subDirs, entries);
+		int i = 0;
+		for(Entry<String, BasicFileAttributes> e:files.entrySet()) {
+			state.names[i] = e.getKey();
+			state.sizes[i] = e.getValue().size();
+			state.mtimes[i] = TreeSnapshot.toNanos(e.getValue());
+			i++;
+		}
+		return state;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		scheduler.shutdownNow();
+		statPool.shutdownNow();
+		if(watchService != null) {
+			try {
+				watchService.close();
+			} catch (IOException e) {
+				Main.logError(e.getMessage(), e);
+			}
+		}
+	}
+
+	static class Tree<T> {
+		final FileMatcher<T> matcher;
+		final List<FileMatcher<T>> single;
+		final Path root;
+		final Map<Path, DirState> dirs = new HashMap<>();
+		/** folders listed in the current cycle */
+		final Set<Path> changed = new HashSet<>();
+		/** changed or new folders waiting to be listed, with attributes read by the check (null for new folders) */
+		final Map<Path, BasicFileAttributes> pending = new LinkedHashMap<>();
+		final boolean hybrid;
+		List<Path> sweepOrder;
+		int sweepCursor;
+		List<Path> checkOrder;
+		int checkCursor;
+
+		Tree(FileMatcher<T> matcher) {
+			this.matcher = matcher;
+			this.single = Collections.singletonList(matcher);
+			this.root = matcher.getRootPath().toAbsolutePath().normalize();
+			this.hybrid = matcher.getWatchMode() == WatchMode.HYBRID;
+		}
+	}
+
+	/** Folder with a native watch */
+	static class HotDir {
+		final Path dir;
+		final WatchKey key;
+		volatile long lastActivity = System.currentTimeMillis();
+		volatile boolean invalid;
+
+		HotDir(Path dir, WatchKey key) {
+			this.dir = dir;
+			this.key = key;
+		}
+	}
+
+	/** Folder modification time, and sorted names with sizes and modification times of matched files */
+	static class DirState {
+		/** new folder, not listed yet */
+		static final DirState NEW = new DirState(Long.MIN_VALUE, 0, Collections.<String>emptyList(), 0);
+
+		final long mtime;
+		final String[] names;
+		final long[] sizes;
+		final long[] mtimes;
+		final String[] subDirs;
+		/** entries found when listed, including folders and files that do not match */
+		final int entries;
+
+		DirState(long mtime, int fileCount, List<String> subDirs, int entries) {
+			this.mtime = mtime;
+			this.entries = entries;
+			this.names = new String[fileCount];
+			this.sizes = new long[fileCount];
+			this.mtimes = new long[fileCount];
+			this.subDirs = subDirs.toArray(new String[subDirs.size()]);
+			Arrays.sort(this.subDirs);
+		}
+
+		DirState(DirState old, String[] names, long[] sizes, long[] mtimes) {
+			this.mtime = old.mtime;
+			this.names = names;
+			this.sizes = sizes;
+			this.mtimes = mtimes;
+			this.subDirs = old.subDirs;
+			this.entries = old.entries;
+		}
+	}
+
+	static class DirCheck<T> {
+		final Tree<T> tree;
+		final Path dir;
+		final BasicFileAttributes attrs;
+
+		DirCheck(Tree<T> tree, Path dir, BasicFileAttributes attrs) {
+			this.tree = tree;
+			this.dir = dir;
+			this.attrs = attrs;
+		}
+	}
+
+	static class DirUpdate<T> {
+		final Tree<T> tree;
+		final Path dir;
+		/** new state, or null if the folder is gone */
+		final DirState state;
+
+		DirUpdate(Tree<T> tree, Path dir, DirState state) {
+			this.tree = tree;
+			this.dir = dir;
+			this.state = state;
+		}
+	}
+
+	static class CheckTask<T> implements Callable<List<DirCheck<T>>> {
+		final Tree<T> tree;
+		final List<Path> dirs;
+		final PollStats stats;
+
+		CheckTask(Tree<T> tree, List<Path> dirs, PollStats stats) {
+			this.tree = tree;
+			this.dirs = dirs;
+			this.stats = stats;
+		}
+
+		@Override
+		public List<DirCheck<T>> call() {
+			List<DirCheck<T>> checks = new ArrayList<>(dirs.size());
+			for(Path dir:dirs) {
+				BasicFileAttributes attrs = TreeSnapshot.readAttributes(dir);
+				checks.add(new DirCheck<T>(tree, dir, attrs == null || !attrs.isDirectory() ? null : attrs));
+			}
+			stats.stats.addAndGet(dirs.size());
+			return checks;
+		}
+	}
+
+	static class ListTask<T> implements Callable<DirUpdate<T>> {
+		final Tree<T> tree;
+		final Path dir;
+		final BasicFileAttributes attrs;
+		final PollStats stats;
+
+		ListTask(Tree<T> tree, Path dir, BasicFileAttributes attrs, PollStats stats) {
+			this.tree = tree;
+			this.dir = dir;
+			this.attrs = attrs;
+			this.stats = stats;
+		}
+
+		@Override
+		public DirUpdate<T> call() {
+			BasicFileAttributes current = attrs;
+			if(current == null) {
+				current = TreeSnapshot.readAttributes(dir);
+				stats.stats.incrementAndGet();
+				if(current == null || !current.isDirectory()) return new DirUpdate<T>(tree, dir, null);
+			}
+			return new DirUpdate<T>(tree, dir, list(tree.matcher, dir, current, stats));
+		}
+	}
+
+	/** Stat known files of a folder that did not change */
+	static class SweepTask<T> implements Callable<DirUpdate<T>> {
+		final Tree<T> tree;
+		final Path dir;
+		final DirState state;
+		final PollStats stats;
+
+		SweepTask(Tree<T> tree, Path dir, DirState state, PollStats stats) {
+			this.tree = tree;
+			this.dir = dir;
+			this.state = state;
+			this.stats = stats;
+		}
+
+		@Override
+		public DirUpdate<T> call() {
+			int count = state.names.length;
+			String[] names = new String[count];
+			long[] sizes = new long[count];
+			long[] mtimes = new long[count];
+			int found = 0;
+			for(int i=0; i<count; i++) {
+				BasicFileAttributes attrs = TreeSnapshot.readAttributes(dir.resolve(state.names[i]));
+				if(attrs == null || attrs.isDirectory()) continue;
+				names[found] = state.names[i];
+				sizes[found] = attrs.size();
+				mtimes[found] = TreeSnapshot.toNanos(attrs);
+				found++;
+			}
+			stats.stats.addAndGet(count);
+			if(found < count) {
+				names = Arrays.copyOf(names, found);
+				sizes = Arrays.copyOf(sizes, found);
+				mtimes = Arrays.copyOf(mtimes, found);
+			}
+			return new DirUpdate<T>(tree, dir, new DirState(state, names, sizes, mtimes));
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package hr.hrg.javawatcher;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for full matcher queues in {@link FolderWatcher}, to help size the queues from production data.
+ * */
+public class QueueStats {
+
+	/** times a change found the queue full */
+	protected final AtomicLong overflows = new AtomicLong();
+	/** {@link OverflowPolicy#BLOCK}: total time the watch thread was blocked */
+	protected final AtomicLong blockedNanos = new AtomicLong();
+	/** {@link OverflowPolicy#DROP_OLDEST} and {@link OverflowPolicy#RESCAN}: changes dropped */
+	protected final AtomicLong dropped = new AtomicLong();
+	/** {@link OverflowPolicy#RESCAN}: rescan markers delivered */
+	protected final AtomicLong rescans = new AtomicLong();
+	/** {@link OverflowPolicy#SPILL}: changes written to disk */
+	protected final AtomicLong spilled = new AtomicLong();
+
+	public long getOverflows() {
+		return overflows.get();
+	}
+
+	public long getBlockedNanos() {
+		return blockedNanos.get();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public long getRescans() {
+		return rescans.get();
+	}
+
+	public long getSpilled() {
+		return spilled.get();
+	}
+
+	@Override
+	public String toString() {
+		return "overflows:"+overflows+" blockedMs:"+blockedNanos.get()/1000000+" dropped:"+dropped+" rescans:"+rescans+" spilled:"+spilled;
+	}
+}
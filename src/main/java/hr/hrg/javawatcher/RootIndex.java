@@ -0,0 +1,118 @@
+package hr.hrg.javawatcher;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index of {@link FileMatcher}s by their absolute root folder.
+ *
+ * It is used by {@link FolderWatcher} to route events from a single shared watcher to the matchers
+ * interested in them, and to find the minimal set of folders that need to be registered for watching.
+ * Routing a path costs one hash lookup per path segment, regardless of the number of matchers.
+ *
+ * */
+public class RootIndex<T> {
+
+	/** matchers that want events from the whole subtree of the root */
+	protected final Map<Path, List<FileMatcher<T>>> recursive = new HashMap<>();
+
+	/** matchers that only want events for files directly in the root */
+	protected final Map<Path, List<FileMatcher<T>>> flat = new HashMap<>();
+
+	/** folders that need to be watched, based on {@link FileMatcher#getWatchPrefixes()} */
+	protected final Set<Path> watchPaths = new HashSet<>();
+
+	public RootIndex() {
+	}
+
+	public RootIndex(Collection<? extends FileMatcher<T>> matchers) {
+		for(FileMatcher<T> m:matchers) add(m);
+	}
+
+	public static Path absRoot(FileMatcher<?> matcher) {
+		return matcher.getRootPath().toAbsolutePath().normalize();
+	}
+
+	public void add(FileMatcher<T> matcher) {
+		Map<Path, List<FileMatcher<T>>> map = matcher.isRecursive() ? recursive : flat;
+		Path root = absRoot(matcher);
+		List<FileMatcher<T>> list = map.get(root);
+		if(list == null) {
+			list = new ArrayList<>(1);
+			map.put(root, list);
+		}
+		list.add(matcher);
+
+		for(Path prefix:matcher.getWatchPrefixes()) {
+			watchPaths.add(existingFolder(root.resolve(prefix).normalize(), root));
+		}
+	}
+
+	/** Nearest existing folder, so a prefix folder created later is still covered by watching its parent. */
+	static Path existingFolder(Path path, Path root) {
+		while(!path.equals(root) && path.startsWith(root) && !Files.isDirectory(path)) {
+			path = path.getParent();
+		}
+		return path.startsWith(root) ? path : root;
+	}
+
+	/**
+	 * Collect matchers that are interested in the path into the provided list.
+	 *
+	 * @param path absolute and normalised path
+	 * @param out list to add found matchers to
+	 * */
+	public void collect(Path path, List<FileMatcher<T>> out) {
+		Path dir = path.getParent();
+		if(dir == null) return;
+
+		List<FileMatcher<T>> list = flat.get(dir);
+		if(list != null) out.addAll(list);
+
+		if(recursive.isEmpty()) return;
+		while(dir != null) {
+			list = recursive.get(dir);
+			if(list != null) out.addAll(list);
+			dir = dir.getParent();
+		}
+	}
+
+	/**
+	 * Collect matchers with the root in the folder into the provided list.
+	 *
+	 * @param dir absolute and normalised folder
+	 * @param out list to add found matchers to
+	 * */
+	public void collectRoot(Path dir, List<FileMatcher<T>> out) {
+		List<FileMatcher<T>> list = recursive.get(dir);
+		if(list != null) out.addAll(list);
+		list = flat.get(dir);
+		if(list != null) out.addAll(list);
+	}
+
+	/**
+	 * Folders that need to be registered with the watch service. A folder nested inside another one is left out
+	 * as it will be covered by the outer one, so every physical folder is registered only once.
+	 * */
+	public List<Path> getWatchRoots() {
+		List<Path> roots = new ArrayList<>();
+		for(Path path:watchPaths) {
+			if(!isCovered(path, watchPaths)) roots.add(path);
+		}
+		return roots;
+	}
+
+	private static boolean isCovered(Path root, Set<Path> all) {
+		for(Path p = root.getParent(); p != null; p = p.getParent()) {
+			if(all.contains(p)) return true;
+		}
+		return false;
+	}
+}
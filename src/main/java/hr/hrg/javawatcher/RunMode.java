@@ -0,0 +1,14 @@
+package hr.hrg.javawatcher;
+
+/**
+ * What {@link TaskRunner} does with a new batch of changes while a task is still running.
+ * In all modes changes that can not run yet are merged into a single follow-up batch.
+ * */
+public enum RunMode {
+	/** wait for the running task to finish, then run once with all changes that arrived meanwhile */
+	QUEUE,
+	/** cancel the running task, and run again with its changes and the new ones as soon as it stops */
+	RESTART,
+	/** run up to the limit of tasks at once, further changes wait for a free slot */
+	PARALLEL;
+}
@@ -0,0 +1,111 @@
+package hr.hrg.javawatcher;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.methvin.watcher.hashing.FileHasher;
+import io.methvin.watcher.hashing.HashCode;
+
+/**
+ * {@link FileHasher} that hashes a file based on {@link FileMatcher#getHashing()} of the matchers that accept it.
+ * <p>
+ * Files no matcher accepts get a constant hash without any I/O, so large excluded files cost nothing at startup,
+ * and their modifications are not reported. The file is hashed once, using the most sensitive strategy among the
+ * matchers that accept it (NONE, then SIZE_MTIME, then CONTENT), so no matcher misses a change it wants.
+ * </p>
+ * */
+public class SelectiveHasher<T> implements FileHasher {
+
+	/** files are read in chunks of this size into a reused direct buffer, must be divisible by 32 for {@link FastHash#update(ByteBuffer)} */
+	static final int READ_BUFFER = 64 * 1024;
+
+	static final HashCode NOT_MATCHED = HashCode.fromLong(0);
+
+	protected final RootIndex<T> rootIndex;
+	/** content hashes from previous runs, can be null */
+	protected final HashCache cache;
+	private final List<FileMatcher<T>> routed = new ArrayList<>();
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER);
+	private long unique;
+
+	public SelectiveHasher(RootIndex<T> rootIndex) {
+		this(rootIndex, null);
+	}
+
+	public SelectiveHasher(RootIndex<T> rootIndex, HashCache cache) {
+		this.rootIndex = rootIndex;
+		this.cache = cache;
+	}
+
+	@Override
+	public synchronized HashCode hash(Path path) throws IOException {
+		path = path.toAbsolutePath();
+		routed.clear();
+		rootIndex.collect(path, routed);
+
+		boolean matched = false;
+		boolean content = true;
+		long sizeLimit = Long.MAX_VALUE;
+		for(int i=0; i<routed.size(); i++) {
+			FileMatcher<T> matcher = routed.get(i);
+			if(!matcher.isMatch(matcher.relativize(path))) continue;
+			matched = true;
+
+			FileHashing hashing = matcher.getHashing();
+			if(hashing == FileHashing.NONE) {
+				// different every time, so every event is reported
+				return HashCode.fromLong(++unique);
+			}else if(hashing == FileHashing.SIZE_MTIME) {
+				content = false;
+			}else {
+				sizeLimit = Math.min(sizeLimit, matcher.getHashSizeLimit());
+			}
+		}
+		if(!matched) return NOT_MATCHED;
+
+		BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+		if(!content || attrs.size() > sizeLimit) return sizeMtime(attrs);
+
+		if(cache != null) {
+			Long cached = cache.get(path, attrs);
+			if(cached != null) return HashCode.fromLong(cached);
+		}
+		long hash = contentHash(path);
+		if(cache != null) cache.put(path, attrs, hash);
+		return HashCode.fromLong(hash);
+	}
+
+	static HashCode sizeMtime(BasicFileAttributes attrs) {
+		return HashCode.fromBytes(ByteBuffer.allocate(16)
+				.putLong(attrs.size())
+				.putLong(attrs.lastModifiedTime().toMillis())
+				.array());
+	}
+
+	/**
+	 * Hash the file content read to the end. It is not memory-mapped, because a file truncated while mapped crashes
+	 * the reading thread, and the file can be longer than its size from the earlier stat.
+	 * */
+	protected long contentHash(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)){
+			FastHash hash = new FastHash(0);
+			while(true) {
+				// Buffer methods, as ByteBuffer overrides from Java 9 are missing on Java 8
+				((Buffer) buffer).clear();
+				int read = 0;
+				while(buffer.hasRemaining() && (read = channel.read(buffer)) >= 0);
+				((Buffer) buffer).flip();
+				if(read < 0) return hash.finish(buffer);
+				hash.update(buffer);
+			}
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package hr.hrg.javawatcher;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Changes of a single matcher written to disk when its queue is full ({@link OverflowPolicy#SPILL}).
+ * While there are spilled changes, new changes are also spilled so the order is kept.
+ * */
+public class SpillFile<T> {
+
+	protected final FileMatcher<T> matcher;
+	protected final Path folder;
+	protected Path file;
+	protected DataOutputStream out;
+	protected int count;
+
+	public SpillFile(FileMatcher<T> matcher, Path folder) {
+		this.matcher = matcher;
+		this.folder = folder;
+	}
+
+	public synchronized int size() {
+		return count;
+	}
+
+	public synchronized void write(FileChangeEntry<T> change) throws IOException {
+		if(out == null) {
+			if(file == null) file = Files.createTempFile(folder, "java-watcher-spill", ".bin");
+			out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)));
+		}
+		out.writeUTF(change.getPath().toString());
+		out.writeByte(change.getType().ordinal());
+		count++;
+	}
+
+	/** Read all spilled changes into the list and start over with an empty file */
+	public synchronized void drainTo(List<FileChangeEntry<T>> list) throws IOException {
+		if(count == 0) return;
+		out.close();
+		out = null;
+
+		FileChangeType[] types = FileChangeType.values();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))){
+			for(int i=0; i<count; i++) {
+				list.add(new FileChangeEntry<T>(Paths.get(in.readUTF()), types[in.readByte()], matcher));
+			}
+		}
+		count = 0;
+	}
+
+	public synchronized void delete() {
+		try {
+			if(out != null) out.close();
+			if(file != null) Files.deleteIfExists(file);
+		} catch (IOException e) {
+			Main.logError(file, "Unable to delete spill file", e);
+		}
+		out = null;
+		count = 0;
+	}
+}
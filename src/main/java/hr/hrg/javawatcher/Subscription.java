@@ -0,0 +1,169 @@
+package hr.hrg.javawatcher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ChangeListener} registered with a {@link FolderWatcher}. Changes are collected until there are none
+ * for {@code debounce} ms, and then delivered as one batch on the executor. Batches of one subscription are delivered
+ * one at a time and in order, even if the executor has more threads. Close it to stop receiving changes.
+ * <p>
+ * Demand is unbounded by default. When it is limited with {@link #request(long)} (see {@link BatchPublisher}),
+ * batches are only assembled while there is demand left, and changes arriving meanwhile are coalesced with
+ * {@link ChangeCoalescer}, so they take memory per changed path and not per event.
+ * </p>
+ * */
+public class Subscription<T> implements AutoCloseable {
+
+	/** pending changes are coalesced when their number reaches this (or twice the size after previous coalescing) */
+	static final int COALESCE_MIN = 256;
+
+	protected final FolderWatcher<T> watcher;
+	protected final FileMatcher<T> matcher;
+	protected final ChangeListener<T> listener;
+	protected final Executor executor;
+	protected final long debounce;
+	protected final ScheduledExecutorService timer;
+
+	protected List<FileChangeEntry<T>> pending = new ArrayList<>();
+	protected long lastChange;
+	protected boolean timerScheduled;
+	protected boolean running;
+	/** number of batches that may still be delivered */
+	protected long demand = Long.MAX_VALUE;
+	protected int coalesceAt = COALESCE_MIN;
+	/** pending was coalesced while waiting for demand, so the whole batch is coalesced for consistency */
+	protected boolean coalesced;
+
+	private final Runnable check = new Runnable() {
+		@Override
+		public void run() {
+			check();
+		}
+	};
+
+	public Subscription(FolderWatcher<T> watcher, FileMatcher<T> matcher, ChangeListener<T> listener, Executor executor, long debounce, ScheduledExecutorService timer) {
+		this.watcher = watcher;
+		this.matcher = matcher;
+		this.listener = listener;
+		this.executor = executor;
+		this.debounce = debounce;
+		this.timer = timer;
+	}
+
+	/** matcher this subscription is for, or null if it gets changes from all matchers of the watcher */
+	public FileMatcher<T> getMatcher() {
+		return matcher;
+	}
+
+	public ChangeListener<T> getListener() {
+		return listener;
+	}
+
+	/** number of changes waiting for the debounce window to pass */
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	protected synchronized void add(FileChangeEntry<T> change) {
+		pending.add(change);
+		lastChange = System.nanoTime();
+		if(demand == 0) {
+			if(pending.size() >= coalesceAt) {
+				pending = ChangeCoalescer.coalesce(pending);
+				coalesceAt = Math.max(COALESCE_MIN, pending.size() * 2);
+				coalesced = true;
+			}
+			return;
+		}
+		if(!timerScheduled && !running) schedule(debounce);
+	}
+
+	/**
+	 * Allow {@code n} more batches to be delivered. 
+	 * */
+	public synchronized void request(long n) {
+		if(n <= 0) throw new IllegalArgumentException("requested batches must be positive: "+n);
+		demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+		if(!pending.isEmpty() && !timerScheduled && !running) schedule(0);
+	}
+
+	public synchronized long getDemand() {
+		return demand;
+	}
+
+	private void schedule(long millis) {
+		timerScheduled = true;
+		timer.schedule(check, millis, TimeUnit.MILLISECONDS);
+	}
+
+	protected void check() {
+		final List<FileChangeEntry<T>> batch;
+		synchronized (this) {
+			timerScheduled = false;
+			if(running || pending.isEmpty() || demand == 0) return;
+
+			long remaining = TimeUnit.NANOSECONDS.toMillis(lastChange + TimeUnit.MILLISECONDS.toNanos(debounce) - System.nanoTime());
+			if(remaining > 0) {
+				schedule(remaining);
+				return;
+			}
+			batch = watcher.isCoalesce() || coalesced ? ChangeCoalescer.coalesce(pending) : pending;
+			pending = new ArrayList<>();
+			coalesceAt = COALESCE_MIN;
+			coalesced = false;
+			if(batch.isEmpty()) return;
+			if(demand != Long.MAX_VALUE) demand--;
+			running = true;
+		}
+
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					deliver(batch);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			Main.logError("Executor rejected changes for "+listener, e);
+			done();
+		}
+	}
+
+	protected void deliver(List<FileChangeEntry<T>> batch) {
+		try {
+			listener.onChanges(batch);
+		} catch (Exception e) {
+			failed(e);
+		} finally {
+			done();
+		}
+	}
+
+	/** Listener threw an exception while handling a batch */
+	protected void failed(Exception e) {
+		Main.logError("Listener failed "+listener, e);
+	}
+
+	/** Called when the watcher is closed, no more changes will come */
+	protected void watcherClosed() {
+	}
+
+	protected synchronized void done() {
+		running = false;
+		// changes that arrived while the listener was running
+		if(!pending.isEmpty() && !timerScheduled) schedule(0);
+	}
+
+	@Override
+	public void close() {
+		watcher.unsubscribe(this);
+		synchronized (this) {
+			pending.clear();
+		}
+	}
+}
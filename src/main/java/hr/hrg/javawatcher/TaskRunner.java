@@ -0,0 +1,195 @@
+package hr.hrg.javawatcher;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs an {@link Action} for batches of changed files on its own threads, so the watch loop keeps taking changes
+ * while the action runs. Batches that can not start right away (see {@link RunMode}) are merged into one pending
+ * batch, so a slow action runs once more with everything that changed meanwhile, and not once per batch.
+ * Each run is a {@link Task} with an id from {@link Main#nextId()}.
+ * */
+public class TaskRunner implements AutoCloseable {
+
+	/** Work done for a batch of changes */
+	public interface Action {
+		/** 
+		 * Run the task. Long running actions should register a way to stop them with {@link Task#onCancel(Runnable)},
+		 * as {@link RunMode#RESTART} cancels a running task when new changes arrive.
+		 * */
+		void run(Task task) throws Exception;
+	}
+
+	public static class Task {
+		protected final int id;
+		protected final Collection<Path> changed;
+		protected final List<Runnable> cancelHooks = new ArrayList<>();
+		protected volatile boolean cancelled;
+		protected Thread thread;
+
+		public Task(int id, Collection<Path> changed) {
+			this.id = id;
+			this.changed = changed;
+		}
+
+		public int getId() {
+			return id;
+		}
+
+		public Collection<Path> getChanged() {
+			return changed;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		/** Register code that stops the work (destroy a process, close a connection). Runs now if already cancelled. */
+		public void onCancel(Runnable hook) {
+			synchronized (this) {
+				if(!cancelled) {
+					cancelHooks.add(hook);
+					return;
+				}
+			}
+			hook.run();
+		}
+
+		public void cancel() {
+			List<Runnable> hooks;
+			synchronized (this) {
+				if(cancelled) return;
+				cancelled = true;
+				hooks = new ArrayList<>(cancelHooks);
+				cancelHooks.clear();
+				if(thread != null) thread.interrupt();
+			}
+			for(Runnable hook:hooks) {
+				try {
+					hook.run();
+				} catch (Exception e) {
+					Main.logError("Cancel failed for task #"+id, e);
+				}
+			}
+		}
+
+		synchronized void setThread(Thread thread) {
+			this.thread = thread;
+		}
+	}
+
+	protected final RunMode mode;
+	protected final int maxTasks;
+	protected final Action action;
+	protected final ExecutorService executor;
+	protected final Set<Path> pending = new LinkedHashSet<>();
+	protected final List<Task> running = new ArrayList<>();
+	protected boolean closed;
+
+	/**
+	 * @param maxTasks tasks that can run at once in {@link RunMode#PARALLEL}, other modes run one task at a time
+	 * @param threadFactory factory for task threads, or null for default
+	 * */
+	public TaskRunner(RunMode mode, int maxTasks, ThreadFactory threadFactory, Action action) {
+		if(mode == null) throw new NullPointerException("mode must be defined");
+		if(action == null) throw new NullPointerException("action must be defined");
+		if(maxTasks < 1) throw new IllegalArgumentException("maxTasks must be at least 1, not "+maxTasks);
+		this.mode = mode;
+		this.maxTasks = mode == RunMode.PARALLEL ? maxTasks : 1;
+		this.action = action;
+		this.executor = Executors.newCachedThreadPool(threadFactory == null ? Executors.defaultThreadFactory() : threadFactory);
+	}
+
+	/** Run the action for the changes now, or merge them into the pending batch */
+	public void submit(Collection<Path> changed) {
+		List<Task> toCancel = Collections.emptyList();
+		synchronized (this) {
+			if(closed) return;
+			pending.addAll(changed);
+			if(mode == RunMode.RESTART && !running.isEmpty()) {
+				toCancel = new ArrayList<>(running);
+				// a cancelled task did not finish its files, so they go to the next run
+				for(Task task:toCancel) {
+					if(!task.isCancelled()) pending.addAll(task.getChanged());
+				}
+			}
+			startPending();
+		}
+		for(Task task:toCancel) {
+			if(task.isCancelled()) continue;
+			if(Main.isInfoEnabled()) Main.logInfo("Task #"+task.getId()+" cancelled, restarting with new changes");
+			task.cancel();
+		}
+	}
+
+	/** number of tasks running (including cancelled ones that did not stop yet) */
+	public synchronized int getRunningCount() {
+		return running.size();
+	}
+
+	/** number of files waiting for the next task */
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	protected void startPending() {
+		while(!pending.isEmpty() && running.size() < maxTasks) {
+			final Task task = new Task(Main.nextId(), new ArrayList<>(pending));
+			pending.clear();
+			running.add(task);
+			try {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						runTask(task);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				running.remove(task);
+				return;
+			}
+		}
+	}
+
+	protected void runTask(Task task) {
+		task.setThread(Thread.currentThread());
+		long start = System.currentTimeMillis();
+		try {
+			if(Main.isInfoEnabled()) Main.logInfo("Task #"+task.getId()+" started with "+task.getChanged().size()+" files");
+			action.run(task);
+			if(Main.isInfoEnabled()) Main.logInfo("Task #"+task.getId()+(task.isCancelled() ? " cancelled after " : " done in ")+(System.currentTimeMillis()-start)+"ms");
+		} catch (Exception e) {
+			if(!task.isCancelled()) Main.logError("Task #"+task.getId()+" failed", e);
+		} finally {
+			task.setThread(null);
+			// clear interrupt from cancel, the thread goes back to the pool
+			Thread.interrupted();
+			synchronized (this) {
+				running.remove(task);
+				if(!closed) startPending();
+			}
+		}
+	}
+
+	/** Cancel running tasks and drop pending changes */
+	@Override
+	public void close() {
+		List<Task> toCancel;
+		synchronized (this) {
+			closed = true;
+			pending.clear();
+			toCancel = new ArrayList<>(running);
+		}
+		for(Task task:toCancel) task.cancel();
+		executor.shutdownNow();
+	}
+}
@@ -0,0 +1,390 @@
+package hr.hrg.javawatcher;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapshot of matched files kept on disk between restarts, so changes made while the process was down
+ * are not lost, and startup does not need to walk the whole tree.
+ * <p>
+ * For each matcher the snapshot has every scanned folder with its modification time, and every matched file with
+ * size, modification time and file key. On start, folders with unchanged modification time are not listed again,
+ * only their matched files are checked. Changed folders are listed again and new sub-folders are scanned.
+ * The differences are returned as synthetic CREATE/MODIFY/DELETE {@link FileChangeEntry} events.
+ * </p><p>
+ * Snapshot for a matcher is used only if the matcher has the same root and rules, otherwise the matcher is fully scanned.
+ * File systems with coarse modification time may hide a change done in the same tick as the snapshot.
+ * </p><p>
+ * Checking the files of unchanged folders is still one stat per matched file, because editing a file in place does not
+ * change the modification time of its folder. With {@link #setCheckFiles(boolean)} off, files in unchanged folders are
+ * taken from the snapshot without a stat, so startup costs one stat per folder, but files edited in place while the
+ * process was down are not reported.
+ * </p>
+ * */
+public class TreeSnapshot<T> {
+
+	static final int MAGIC = 0x4a575331; // JWS1
+	static final int VERSION = 1;
+
+	protected final Path file;
+
+	/** snapshot loaded from disk, by matcher key and folder relative to matcher root */
+	protected Map<String, Map<Path, DirEntry>> loaded = new HashMap<>();
+
+	/** folders scanned during this run and their modification time at that moment, by matcher */
+	protected Map<FileMatcher<T>, Map<Path, Long>> scanned = new HashMap<>();
+
+	/** Default: TRUE. If files in folders with unchanged modification time are checked for changes */
+	protected boolean checkFiles = true;
+
+	public TreeSnapshot(Path file) {
+		this.file = file;
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	public boolean isCheckFiles() {
+		return checkFiles;
+	}
+
+	/**
+	 * Turn off to trust folder modification time: files in unchanged folders are not checked on start, so only deleted
+	 * and created files are found there, and files edited in place while the process was down are missed.
+	 * */
+	public void setCheckFiles(boolean checkFiles) {
+		this.checkFiles = checkFiles;
+	}
+
+	/**
+	 * Key that identifies a matcher in the snapshot. Snapshot is not reused if root or rules change.
+	 * */
+	public static String matcherKey(FileMatcher<?> matcher) {
+		StringBuilder b = new StringBuilder();
+		b.append(RootIndex.absRoot(matcher)).append('|').append(matcher.isRecursive());
+		if(matcher instanceof FileMatchGlob) {
+			FileMatchGlob<?> glob = (FileMatchGlob<?>) matcher;
+			b.append("|i:").append(glob.includeRules).append("|e:").append(glob.excludeRules);
+		}
+		return b.toString();
+	}
+
+	/**
+	 * Load the snapshot from disk with a single read.
+	 *
+	 * @return false if there is no snapshot, or it is not readable (then matchers are fully scanned)
+	 * */
+	public boolean load() {
+		loaded = new HashMap<>();
+		if(!Files.isRegularFile(file)) return false;
+
+		try {
+			ByteBuffer buf = readFile(file);
+			if(buf.getInt() != MAGIC || buf.getInt() != VERSION) return false;
+
+			// smallest size of an entry is used to reject counts a corrupt file can not hold
+			int matcherCount = readCount(buf, 8);
+			for(int m=0; m<matcherCount; m++) {
+				String key = readString(buf);
+				int dirCount = readCount(buf, 16);
+				Map<Path, DirEntry> dirs = new HashMap<>(dirCount*2);
+				for(int d=0; d<dirCount; d++) {
+					DirEntry dir = new DirEntry(buf.getLong());
+					Path relDir = Paths.get(readString(buf));
+					int fileCount = readCount(buf, 24);
+					for(int f=0; f<fileCount; f++) {
+						String name = readString(buf);
+						dir.files.put(name, new FileEntry(buf.getLong(), buf.getLong(), readString(buf)));
+					}
+					dirs.put(relDir, dir);
+				}
+				loaded.put(key, dirs);
+			}
+			return true;
+		} catch (IOException | RuntimeException e) {
+			// corrupt or truncated file: underflow, invalid path
+			Main.logError("Unable to read snapshot "+file, e);
+			loaded = new HashMap<>();
+			return false;
+		}
+	}
+
+	/**
+	 * Fill the matcher using the loaded snapshot, or by a full scan if there is no snapshot for it.
+	 *
+	 * @return changes since the snapshot was saved, empty if it was a full scan
+	 * */
+	public List<FileChangeEntry<T>> restore(FileMatcher<T> matcher) {
+		matcher.setCollectMatched(true);
+		List<FileChangeEntry<T>> changes = new ArrayList<>();
+		Map<Path, Long> dirs = new HashMap<>();
+		scanned.put(matcher, dirs);
+
+		Map<Path, DirEntry> snap = loaded.remove(matcherKey(matcher));
+		if(snap == null) {
+			scan(matcher, matcher.getRootPath(), dirs, null, null);
+			return changes;
+		}
+
+		Path rootPath = matcher.getRootPath();
+		for(Entry<Path, DirEntry> e:snap.entrySet()) {
+			Path relDir = e.getKey();
+			DirEntry dirEntry = e.getValue();
+			Path dir = rootPath.resolve(relDir);
+
+			BasicFileAttributes attrs = readAttributes(dir);
+			if(attrs == null || !attrs.isDirectory()) {
+				for(String name:dirEntry.files.keySet()) {
+					changes.add(new FileChangeEntry<T>(relDir.resolve(name), FileChangeType.DELETE, matcher));
+				}
+				continue;
+			}
+
+			long mtime = toNanos(attrs);
+			dirs.put(relDir, mtime);
+			if(mtime == dirEntry.mtime && !checkFiles) {
+				// folder entries did not change, the files are still there
+				for(String name:dirEntry.files.keySet()) matcher.offer(relDir.resolve(name));
+			}else if(mtime == dirEntry.mtime) {
+				// folder entries did not change, only check the files we know of
+				for(Entry<String, FileEntry> f:dirEntry.files.entrySet()) {
+					checkFile(matcher, relDir.resolve(f.getKey()), readAttributes(dir.resolve(f.getKey())), f.getValue(), changes);
+				}
+			}else {
+				relist(matcher, relDir, dir, dirEntry, snap, dirs, changes);
+			}
+		}
+		return changes;
+	}
+
+	protected void relist(FileMatcher<T> matcher, Path relDir, Path dir, DirEntry dirEntry, Map<Path, DirEntry> snap, Map<Path, Long> dirs, List<FileChangeEntry<T>> changes) {
+		Set<String> seen = new HashSet<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)){
+			for(Path path:stream) {
+				BasicFileAttributes attrs = readAttributes(path);
+				if(attrs == null) continue;
+
+				String name = path.getFileName().toString();
+				Path rel = relDir.resolve(name);
+				if(attrs.isDirectory()) {
+					if(!snap.containsKey(rel) && FolderWatcher.isDirScanned(matcher, path)) {
+						scan(matcher, path, dirs, snap, changes);
+					}
+				}else {
+					seen.add(name);
+					checkFile(matcher, rel, attrs, dirEntry.files.get(name), changes);
+				}
+			}
+		} catch (IOException e) {
+			Main.logError(dir, "Unable to list folder", e);
+		}
+
+		for(String name:dirEntry.files.keySet()) {
+			if(!seen.contains(name)) changes.add(new FileChangeEntry<T>(relDir.resolve(name), FileChangeType.DELETE, matcher));
+		}
+	}
+
+	protected void checkFile(FileMatcher<T> matcher, Path rel, BasicFileAttributes attrs, FileEntry known, List<FileChangeEntry<T>> changes) {
+		if(attrs == null) {
+			if(known != null) changes.add(new FileChangeEntry<T>(rel, FileChangeType.DELETE, matcher));
+			return;
+		}
+		if(!matcher.offer(rel)) return;
+
+		if(known == null) {
+			changes.add(new FileChangeEntry<T>(rel, FileChangeType.CREATE, matcher));
+		}else if(!known.same(attrs)) {
+			changes.add(new FileChangeEntry<T>(rel, FileChangeType.MODIFY, matcher));
+		}
+	}
+
+	/**
+	 * Scan a folder like {@link FolderWatcher#fillMatcher(FileMatcher)} does, but also record scanned folders.
+	 *
+	 * @param snap if not null, folders from the snapshot are skipped as they are checked separately
+	 * @param changes if not null, matched files are added as CREATE
+	 * */
+	protected void scan(final FileMatcher<T> matcher, final Path start, final Map<Path, Long> dirs, final Map<Path, DirEntry> snap, final List<FileChangeEntry<T>> changes) {
+		try {
+			Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					Path rel = matcher.relativize(file);
+					if(matcher.offer(rel) && changes != null) changes.add(new FileChangeEntry<T>(rel, FileChangeType.CREATE, matcher));
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+					if(dir.equals(start)) {
+						dirs.put(matcher.relativize(dir), toNanos(attrs));
+						return FileVisitResult.CONTINUE;
+					}
+					Path rel = matcher.relativize(dir);
+					if(!FolderWatcher.isDirScanned(matcher, dir) || (snap != null && snap.containsKey(rel))) return FileVisitResult.SKIP_SUBTREE;
+					dirs.put(rel, toNanos(attrs));
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			throw new RuntimeException(e.getMessage(),e);
+		}
+	}
+
+	/**
+	 * Write the snapshot. Folders are written with the modification time from the moment they were scanned,
+	 * and files with their current attributes, so anything changed since is detected on next start.
+	 * Snapshot is written to a temporary file first, and then moved in place.
+	 * */
+	public void save(Collection<FileMatcher<T>> matchers) throws IOException {
+		Path tmp = file.resolveSibling(file.getFileName()+".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 65536))){
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+
+			List<FileMatcher<T>> toSave = new ArrayList<>();
+			for(FileMatcher<T> m:matchers) if(scanned.containsKey(m)) toSave.add(m);
+			out.writeInt(toSave.size());
+
+			for(FileMatcher<T> matcher:toSave) {
+				Map<Path, DirEntry> dirs = new HashMap<>();
+				for(Entry<Path, Long> e:scanned.get(matcher).entrySet()) dirs.put(e.getKey(), new DirEntry(e.getValue()));
+
+				Path rootPath = matcher.getRootPath();
+				for(Path rel:matcher.getMatched()) {
+					BasicFileAttributes attrs = readAttributes(rootPath.resolve(rel));
+					if(attrs == null) continue;
+
+					Path relDir = rel.getParent() == null ? Paths.get("") : rel.getParent();
+					DirEntry dir = dirs.get(relDir);
+					// folder created after the scan, -1 forces listing it on next start
+					if(dir == null) dirs.put(relDir, dir = new DirEntry(-1));
+					dir.files.put(rel.getFileName().toString(), new FileEntry(attrs));
+				}
+
+				writeString(out, matcherKey(matcher));
+				out.writeInt(dirs.size());
+				for(Entry<Path, DirEntry> e:dirs.entrySet()) {
+					DirEntry dir = e.getValue();
+					out.writeLong(dir.mtime);
+					writeString(out, e.getKey().toString());
+					out.writeInt(dir.files.size());
+					for(Entry<String, FileEntry> f:dir.files.entrySet()) {
+						writeString(out, f.getKey());
+						out.writeLong(f.getValue().size);
+						out.writeLong(f.getValue().mtime);
+						writeString(out, f.getValue().key);
+					}
+				}
+			}
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/** @return attributes or null if the file does not exist or is not readable */
+	static BasicFileAttributes readAttributes(Path path) {
+		try {
+			return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	static long toNanos(BasicFileAttributes attrs) {
+		return attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+	}
+
+	static String fileKey(BasicFileAttributes attrs) {
+		Object key = attrs.fileKey();
+		return key == null ? "" : key.toString();
+	}
+
+	static void writeString(DataOutputStream out, String str) throws IOException {
+		byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Read the whole file into a heap buffer. It is not memory mapped, as a mapping stays open until garbage collected,
+	 * and on Windows the file can not be replaced by {@link #save(Collection)} while it is.
+	 * */
+	static ByteBuffer readFile(Path file) throws IOException {
+		long size = Files.size(file);
+		if(size > Integer.MAX_VALUE - 8) throw new IOException("File too large "+size+" "+file);
+		return ByteBuffer.wrap(Files.readAllBytes(file));
+	}
+
+	/**
+	 * @param minSize smallest size in bytes of one counted entry
+	 * @return count read from the buffer
+	 * @throws IOException if the rest of the buffer is too short to hold that many entries
+	 * */
+	static int readCount(ByteBuffer buf, int minSize) throws IOException {
+		int count = buf.getInt();
+		if(count < 0 || count > buf.remaining() / minSize) throw new IOException("Corrupt file, count "+count+" with "+buf.remaining()+" bytes left");
+		return count;
+	}
+
+	static String readString(ByteBuffer buf) throws IOException {
+		byte[] bytes = new byte[readCount(buf, 1)];
+		buf.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	static class DirEntry {
+		final long mtime;
+		final Map<String, FileEntry> files = new HashMap<>();
+
+		DirEntry(long mtime) {
+			this.mtime = mtime;
+		}
+	}
+
+	static class FileEntry {
+		final long size;
+		final long mtime;
+		final String key;
+
+		FileEntry(long size, long mtime, String key) {
+			this.size = size;
+			this.mtime = mtime;
+			this.key = key;
+		}
+
+		FileEntry(BasicFileAttributes attrs) {
+			this(attrs.size(), toNanos(attrs), fileKey(attrs));
+		}
+
+		boolean same(BasicFileAttributes attrs) {
+			return size == attrs.size() && mtime == toNanos(attrs) && key.equals(fileKey(attrs));
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package hr.hrg.javawatcher;
+
+import java.nio.file.Path;
+import java.util.AbstractSet;
+import java.util.Iterator;
+
+/**
+ * Set of paths that publishes every change as a new immutable {@link PathSnapshot}.
+ * <p>
+ * Writers are serialized, and each change makes the next version sharing all unchanged nodes with the previous one.
+ * Readers call {@link #snapshot()}, a single volatile read without locks, and can iterate that version for as long as they
+ * like without blocking writers or seeing later changes. Iterating the set itself also iterates the version current
+ * when the iterator was created, so it never throws {@link java.util.ConcurrentModificationException}.
+ * </p>
+ * */
+public class VersionedPathSet extends AbstractSet<Path> {
+
+	protected volatile PathSnapshot current = PathSnapshot.EMPTY;
+
+	/** Current version, immutable */
+	public PathSnapshot snapshot() {
+		return current;
+	}
+
+	public long getGeneration() {
+		return current.generation;
+	}
+
+	@Override
+	public int size() {
+		return current.size;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return current.contains(o);
+	}
+
+	@Override
+	public synchronized boolean add(Path path) {
+		PathSnapshot next = current.with(path, current.generation + 1);
+		if(next == current) return false;
+		current = next;
+		return true;
+	}
+
+	@Override
+	public synchronized boolean remove(Object o) {
+		if(!(o instanceof Path)) return false;
+		PathSnapshot next = current.without((Path) o, current.generation + 1);
+		if(next == current) return false;
+		current = next;
+		return true;
+	}
+
+	@Override
+	public synchronized void clear() {
+		current = new PathSnapshot(PathSnapshot.EMPTY.root, 0, current.generation + 1);
+	}
+
+	@Override
+	public Iterator<Path> iterator() {
+		final Iterator<Path> iterator = current.iterator();
+		return new Iterator<Path>() {
+			Path last;
+
+			@Override
+			public boolean hasNext() {
+				return iterator.hasNext();
+			}
+
+			@Override
+			public Path next() {
+				return last = iterator.next();
+			}
+
+			@Override
+			public void remove() {
+				if(last == null) throw new IllegalStateException();
+				VersionedPathSet.this.remove(last);
+				last = null;
+			}
+		};
+	}
+}
@@ -0,0 +1,11 @@
+package hr.hrg.javawatcher;
+
+/**
+ * Source of native events for {@link WatchMode#NATIVE} matchers, see {@link FolderWatcher#setWatchBackend(WatchBackend)}.
+ * */
+public enum WatchBackend {
+	/** directory-watcher over the OS default watch service (or one from {@link WatchServiceFactory}) */
+	DEFAULT,
+	/** inotify called directly on Linux by {@link InotifyWatcher}, {@link #DEFAULT} on other systems */
+	INOTIFY;
+}
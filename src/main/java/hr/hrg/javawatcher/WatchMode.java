@@ -0,0 +1,13 @@
+package hr.hrg.javawatcher;
+
+/**
+ * How {@link FolderWatcher} detects changes for a {@link FileMatcher}, see {@link FileMatcher#getWatchMode()}.
+ * */
+public enum WatchMode {
+	/** events from the OS watch service */
+	NATIVE,
+	/** periodic stat based checks by {@link PollingWatcher}, for file systems where native events never arrive (NFS, some overlay file systems) */
+	POLL,
+	/** polling, with native watches for recently active folders within a watch budget, see {@link PollingWatcher} */
+	HYBRID;
+}
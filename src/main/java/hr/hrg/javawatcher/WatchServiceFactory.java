@@ -0,0 +1,23 @@
+package hr.hrg.javawatcher;
+
+import java.io.IOException;
+import java.nio.file.WatchService;
+
+import io.methvin.watcher.hashing.FileHasher;
+
+/**
+ * Creates the {@link WatchService} used by {@link FolderWatcher}, so the OS default one can be replaced.
+ * See {@link FolderWatcher#setWatchServiceFactory(WatchServiceFactory)}.
+ * <p>
+ * Except on Mac, directory-watcher registers folders with {@link java.nio.file.Path#register}, which accepts only
+ * services of the default file system provider, so there this can only wrap {@code FileSystems.getDefault().newWatchService()}.
+ * For native events on Linux without the JDK watch service use {@link WatchBackend#INOTIFY}.
+ * </p>
+ * */
+public interface WatchServiceFactory {
+
+	/**
+	 * @param fileHasher hasher used by the watcher, for implementations that need to detect changes themselves
+	 * */
+	WatchService newWatchService(FileHasher fileHasher) throws IOException;
+}
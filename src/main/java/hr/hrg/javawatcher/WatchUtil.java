@@ -1,7 +1,26 @@
 package hr.hrg.javawatcher;
 
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
 public class WatchUtil {
 
+	/**
+	 * {@link ThreadFactory} for virtual threads when running on Java 21+. Looked up by reflection, so the library
+	 * still runs on Java 8.
+	 * 
+	 * @return factory or null if the running JVM does not have virtual threads
+	 * */
+	public static ThreadFactory virtualThreadFactory(){
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
 	public static final boolean classAvailable(String name){
 		try {
 			Class.forName(name);
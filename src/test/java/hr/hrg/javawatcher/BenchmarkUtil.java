@@ -0,0 +1,104 @@
+package hr.hrg.javawatcher;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ *  Helpers shared by the benchmark examples.
+ * */
+public class BenchmarkUtil {
+
+	/** Folder tree with {@code width} folders, each with {@code width} sub-folders holding {@code files} .txt files */
+	static Path createTree(String prefix, int width, int files) throws IOException {
+		Path root = Files.createTempDirectory(prefix);
+		for(int i=0; i<width; i++) {
+			for(int j=0; j<width; j++) {
+				Path dir = Files.createDirectories(root.resolve("d"+i).resolve("s"+j));
+				for(int f=0; f<files; f++) Files.write(dir.resolve("f"+f+".txt"), "x".getBytes());
+			}
+		}
+		return root;
+	}
+
+	static void delete(Path root) throws IOException {
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	static Set<Thread> liveThreads() {
+		return new HashSet<>(Thread.getAllStackTraces().keySet());
+	}
+
+	/** number of live threads that were not in the set */
+	static int newThreads(Set<Thread> before) {
+		int count = 0;
+		for(Thread t:Thread.getAllStackTraces().keySet()) {
+			if(!before.contains(t)) count++;
+		}
+		return count;
+	}
+
+	/** (MB) heap in use after a GC */
+	static long usedHeap() {
+		for(int i=0; i<3; i++) System.gc();
+		Runtime rt = Runtime.getRuntime();
+		return (rt.totalMemory() - rt.freeMemory()) / (1024 * 1024);
+	}
+
+	/** Kernel inotify watches of this process (Linux only), or -1 if not known */
+	static int inotifyWatches() {
+		Path fds = Paths.get("/proc/self/fd");
+		if(!Files.isDirectory(fds)) return -1;
+		int count = 0;
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(fds)){
+			for(Path fd:stream) {
+				try {
+					if(!Files.readSymbolicLink(fd).toString().contains("inotify")) continue;
+					for(String line:Files.readAllLines(Paths.get("/proc/self/fdinfo").resolve(fd.getFileName()))) {
+						if(line.startsWith("inotify wd:")) count++;
+					}
+				} catch (IOException e) {
+					// closed while listing
+				}
+			}
+		} catch (IOException e) {
+			return -1;
+		}
+		return count;
+	}
+
+	/** @param percent 0-100 */
+	static long percentile(long[] sorted, double percent) {
+		if(sorted.length == 0) return 0;
+		int i = (int) Math.ceil(percent / 100 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+	}
+
+	static long[] sorted(List<Long> values) {
+		long[] arr = new long[values.size()];
+		for(int i=0; i<arr.length; i++) arr[i] = values.get(i);
+		Arrays.sort(arr);
+		return arr;
+	}
+}
@@ -1,15 +1,17 @@
 package hr.hrg.javawatcher;
 
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 
 /**<p>
  *  More complex example showing :
  *  <ul>
  *  	<li>how to compile sass file on change
- *  	<li>how to compile all main files when an include file changes.
+ *  	<li>how to compile only main files that import a changed include file, using {@link DependencyGraph}.
  *  	<li>how to know the difference when source or include was changed
  *  	<li>how to avoid redundant compilation when burst change occurs <br>
  *  		<i>(some editors might triger more than one change event in few miliseconds time)</i>
@@ -29,6 +31,9 @@ public class ComplexCompileExample {
 
 		// for collecting files to compile, and to skip duplicates
 		HashSet<Path> todo = new HashSet<>();
+
+		// which main files import which includes, recorded while compiling
+		DependencyGraph dependencies = new DependencyGraph();
 		
 		// GlobWatcher implements AutoCloseable. Use it in try-with-resources or call .close() manually 
 		try( GlobWatcher watcher = new GlobWatcher(Paths.get("./scss"), true) ){
@@ -47,6 +52,13 @@ public class ComplexCompileExample {
 			
 			//start watching, no configuration should happen after this as it wil give unexpected results
 			watcher.init(true);
+
+			// compile everything once, to know the imports
+			for(Path path: sourceFiles.query()){
+				Path file = sourceFiles.getRootPath().resolve(path);
+				dependencies.addRoot(file);
+				dependencies.setDependencies(file, compileSass(file));
+			}
 			
 			Collection<FileChangeEntry<FileMatchGlob>> changedFiles = null;
 			
@@ -55,25 +67,46 @@ public class ComplexCompileExample {
 				changedFiles = watcher.takeBatch(burstDelay);
 				if(changedFiles == null) break; // interrupted
 				
+				boolean overflow = false;
 				for (FileChangeEntry<FileMatchGlob> changed : changedFiles) {	
-					if(changed.getMatcher() == sourceFiles){
-						// a source file changed, add only it for recompilation
-						todo.add(changed.getPath());						
-					}else{
-						// if any file in include folder changes, we want to recompile all source scss files
-						todo.addAll(sourceFiles.getMatched());						
+					if(changed.getType() == FileChangeType.OVERFLOW){
+						overflow = true;
+					}else if(changed.getMatcher() == sourceFiles && changed.getType() != FileChangeType.DELETE){
+						// new source files are roots too
+						dependencies.addRoot(DependencyGraph.key(changed));
+					}
+				}
+				if(overflow){
+					// some changes were lost (too many at once), so new source files may be missing too, rebuild everything
+					for(Path path: sourceFiles.query()){
+						dependencies.addRoot(sourceFiles.getRootPath().resolve(path));
+					}
+					for(Path root: dependencies.getRoots()){
+						// deletes could be lost too
+						if(Files.exists(root)){
+							todo.add(root);
+						}else{
+							dependencies.remove(root);
+						}
 					}
+				}else{
+					// changed source files, and source files that import a changed include (also through other includes)
+					todo.addAll(dependencies.rootsToRebuild(changedFiles));
 				}
 				
 				for(Path path: todo){
-					compileSass(path);
+					// imports can change with the file, so record them again
+					dependencies.setDependencies(path, compileSass(path));
 				}
+				todo.clear();
 			}
 		}
 	}
 
-	static void compileSass(Path sassFile){
+	/** @return files imported while compiling */
+	static Collection<Path> compileSass(Path sassFile){
 		System.out.println("compile: "+sassFile);
 		// implement compilation here
+		return Collections.emptyList();
 	}
 }
@@ -0,0 +1,77 @@
+package hr.hrg.javawatcher;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ *  Example comparing the sequential scan {@link FolderWatcher#fillMatcher(FileMatcher)} with {@link ParallelScan}
+ *  at several parallelism levels on a synthetic tree, and checking that both find the same files.
+ *  <p>
+ *  The tree is scanned once before measuring, so times are with a warm OS cache (listing and stat calls, not disk).
+ *  </p><p>
+ *  Arguments: folders per level (default 12), levels (default 3), files per folder (default 30), parallelism levels (default 2 4 8)
+ *  </p>
+ * */
+public class ParallelScanBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int width = args.length > 0 ? Integer.parseInt(args[0]) : 12;
+		int depth = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+		int files = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+		int[] levels = {2, 4, 8};
+		if(args.length > 3) {
+			levels = new int[args.length - 3];
+			for(int i=3; i<args.length; i++) levels[i-3] = Integer.parseInt(args[i]);
+		}
+
+		Path root = Files.createTempDirectory("scan-bench");
+		try {
+			int folders = create(root, width, depth, files);
+			System.out.println("tree: "+folders+" folders, "+(folders * files)+" files, "+Runtime.getRuntime().availableProcessors()+" cpus");
+
+			Set<Path> expected = null;
+			for(int run=0; run<4; run++) {
+				// first run warms up the OS cache and JIT
+				boolean print = run > 0;
+
+				FileMatchGlob<Object> matcher = matcher(root);
+				long start = System.nanoTime();
+				FolderWatcher.fillMatcher(matcher);
+				long time = (System.nanoTime() - start) / 1_000_000;
+				Set<Path> matched = new HashSet<>(matcher.getMatched());
+				if(expected == null) expected = matched;
+				if(print) System.out.println("run "+run+" sequential: "+time+"ms, "+matched.size()+" matched");
+
+				for(int parallelism:levels) {
+					matcher = matcher(root);
+					start = System.nanoTime();
+					ParallelScan.fill(matcher, parallelism);
+					time = (System.nanoTime() - start) / 1_000_000;
+					matched = new HashSet<>(matcher.getMatched());
+					if(!matched.equals(expected)) throw new IllegalStateException("parallelism "+parallelism+" matched "+matched.size()+" files, sequential "+expected.size());
+					if(print) System.out.println("run "+run+" parallel "+parallelism+": "+time+"ms, same "+matched.size()+" matched");
+				}
+			}
+		} finally {
+			BenchmarkUtil.delete(root);
+		}
+	}
+
+	/** .txt files, except in folders named 0 (pruned) and files named 0.txt (excluded) */
+	static FileMatchGlob<Object> matcher(Path root) {
+		FileMatchGlob<Object> matcher = new FileMatchGlob<>(root, true);
+		matcher.includes("**/*.txt").excludes("**/0", "**/0.txt");
+		return matcher;
+	}
+
+	/** @return number of folders created */
+	static int create(Path dir, int width, int depth, int files) throws Exception {
+		int count = 1;
+		for(int f=0; f<files; f++) Files.write(dir.resolve(f+(f % 5 == 4 ? ".log" : ".txt")), new byte[0]);
+		if(depth == 0) return count;
+		for(int i=0; i<width; i++) count += create(Files.createDirectory(dir.resolve(Integer.toString(i))), width, depth - 1, files);
+		return count;
+	}
+}
@@ -0,0 +1,208 @@
+package hr.hrg.javawatcher;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.methvin.watcher.DirectoryChangeEvent;
+import io.methvin.watcher.DirectoryChangeListener;
+import io.methvin.watcher.DirectoryWatcher;
+
+/**
+ *  Example measuring the shared watcher of {@link FolderWatcher} with many overlapping matchers: time to register,
+ *  threads and kernel watches used, and the cost of routing an event through {@link RootIndex}.
+ *  <p>
+ *  Matchers are spread over a synthetic tree {@code d*}/{@code s*}: one on the whole tree, the rest on its folders
+ *  and sub-folders, some of them not recursive. For comparison, one {@link DirectoryWatcher} with its own thread per
+ *  matcher (how matchers were watched before) is measured where the per-user inotify instance limit allows it.
+ *  </p><p>
+ *  Arguments: matcher counts (default 100 1000 10000)
+ *  </p>
+ * */
+public class SharedWatcherBenchmark {
+
+	static final int WIDTH = 20;
+	static final int FILES = 5;
+	/** default fs.inotify.max_user_instances is 128, each DirectoryWatcher uses one */
+	static final int MAX_SEPARATE = 100;
+
+	public static void main(String[] args) throws Exception {
+		int[] counts = {100, 1000, 10000};
+		if(args.length > 0) {
+			counts = new int[args.length];
+			for(int i=0; i<args.length; i++) counts[i] = Integer.parseInt(args[i]);
+		}
+
+		Path root = BenchmarkUtil.createTree("shared-bench", WIDTH, FILES);
+		try {
+			// warm up
+			shared(root, 100, false);
+			for(int count:counts) {
+				shared(root, count, true);
+				if(count <= MAX_SEPARATE) separate(root, count);
+			}
+		} finally {
+			BenchmarkUtil.delete(root);
+		}
+	}
+
+	static List<FileMatchGlob<Object>> matchers(Path root, int count) {
+		List<FileMatchGlob<Object>> list = new ArrayList<>();
+		list.add(new FileMatchGlob<>(root, true).includes("**/*.txt"));
+		for(int i=1; i<count; i++) {
+			Path dir = root.resolve("d"+(i % WIDTH));
+			// every third on a sub-folder, half of those not recursive
+			if(i % 3 == 0) dir = dir.resolve("s"+(i / WIDTH % WIDTH));
+			list.add(new FileMatchGlob<>(dir, i % 6 != 3).includes("**/*.txt", "*.txt"));
+		}
+		return list;
+	}
+
+	static void shared(Path root, int count, boolean print) throws Exception {
+		final AtomicInteger delivered = new AtomicInteger();
+		Set<Thread> threads = BenchmarkUtil.liveThreads();
+		long start = System.nanoTime();
+		FolderWatcher<Object> watcher = new FolderWatcher<>();
+		for(FileMatchGlob<Object> m:matchers(root, count)) watcher.add(m);
+		watcher.subscribe(new ChangeListener<Object>() {
+			@Override
+			public void onChanges(List<FileChangeEntry<Object>> changes) {
+				delivered.addAndGet(changes.size());
+			}
+		}, new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				command.run();
+			}
+		}, 0);
+		watcher.init(true);
+		long registerTime = (System.nanoTime() - start) / 1_000_000;
+		// watch thread registers folders in the background
+		Thread.sleep(300);
+
+		try {
+			int newThreads = BenchmarkUtil.newThreads(threads);
+			int watches = BenchmarkUtil.inotifyWatches();
+
+			// routing a path to interested matchers, compared to checking every matcher
+			RootIndex<Object> index = watcher.rootIndex;
+			List<FileMatcher<Object>> all = watcher.getMatchers();
+			Path[] paths = new Path[1000];
+			Random random = new Random(1);
+			for(int i=0; i<paths.length; i++) {
+				paths[i] = root.resolve("d"+random.nextInt(WIDTH)).resolve("s"+random.nextInt(WIDTH)).resolve("f"+random.nextInt(FILES)+".txt").toAbsolutePath().normalize();
+			}
+			List<FileMatcher<Object>> out = new ArrayList<>();
+			long routed = 0;
+			int rounds = 1000;
+			start = System.nanoTime();
+			for(int r=0; r<rounds; r++) {
+				for(Path p:paths) {
+					out.clear();
+					index.collect(p, out);
+					routed += out.size();
+				}
+			}
+			long indexNs = (System.nanoTime() - start) / ((long)rounds * paths.length);
+			routed /= rounds;
+
+			Path[] roots = new Path[all.size()];
+			for(int i=0; i<roots.length; i++) roots[i] = RootIndex.absRoot(all.get(i));
+			long scanned = 0;
+			int scanRounds = Math.max(1, 100_000 / count);
+			start = System.nanoTime();
+			for(int r=0; r<scanRounds; r++) {
+				for(Path p:paths) {
+					for(int i=0; i<roots.length; i++) {
+						if(all.get(i).isRecursive() ? p.startsWith(roots[i]) : roots[i].equals(p.getParent())) scanned++;
+					}
+				}
+			}
+			long scanNs = (System.nanoTime() - start) / ((long)scanRounds * paths.length);
+			scanned /= scanRounds;
+			if(routed != scanned) throw new IllegalStateException("index routed "+routed+", scan "+scanned);
+
+			// end to end: change every file once
+			int expected = 0;
+			start = System.nanoTime();
+			for(int i=0; i<WIDTH; i++) {
+				for(int j=0; j<WIDTH; j++) {
+					for(int f=0; f<FILES; f++) {
+						Path file = root.resolve("d"+i).resolve("s"+j).resolve("f"+f+".txt");
+						Files.write(file, "y".getBytes());
+						out.clear();
+						index.collect(file.toAbsolutePath().normalize(), out);
+						expected += out.size();
+					}
+				}
+			}
+			waitFor(delivered, expected);
+			long deliverTime = (System.nanoTime() - start) / 1_000_000;
+
+			if(print) {
+				System.out.println("shared   "+count+" matchers: register "+registerTime+"ms, "+newThreads+" threads, "
+						+index.getWatchRoots().size()+" watch roots, "+watches+" kernel watches, route "+indexNs+"ns/event ("
+						+(routed / paths.length)+" matchers each, linear scan "+scanNs+"ns), "
+						+(WIDTH*WIDTH*FILES)+" writes delivered as "+delivered.get()+" changes to matchers (at least "+expected+") in "+deliverTime+"ms");
+			}
+		} finally {
+			watcher.close();
+		}
+	}
+
+	/** one DirectoryWatcher and thread per matcher */
+	static void separate(Path root, int count) throws Exception {
+		Set<Thread> threads = BenchmarkUtil.liveThreads();
+		long start = System.nanoTime();
+		List<DirectoryWatcher> watchers = new ArrayList<>();
+		try {
+			for(FileMatchGlob<Object> m:matchers(root, count)) {
+				final DirectoryWatcher w = DirectoryWatcher.builder()
+						.path(RootIndex.absRoot(m))
+						.listener(new DirectoryChangeListener() {
+							@Override
+							public void onEvent(DirectoryChangeEvent event) throws IOException {
+							}
+						})
+						.build();
+				watchers.add(w);
+				FolderWatcher.fillMatcher(m);
+				new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							w.watch();
+						} catch (ClosedWatchServiceException e) {
+							// closed at the end
+						}
+					}
+				}).start();
+			}
+			long registerTime = (System.nanoTime() - start) / 1_000_000;
+			Thread.sleep(300);
+			System.out.println("separate "+count+" matchers: register "+registerTime+"ms, "+BenchmarkUtil.newThreads(threads)
+					+" threads, "+BenchmarkUtil.inotifyWatches()+" kernel watches");
+		} finally {
+			for(DirectoryWatcher w:watchers) w.close();
+		}
+	}
+
+	static void waitFor(AtomicInteger counter, int expected) throws InterruptedException {
+		long last = System.nanoTime();
+		int seen = -1;
+		while(counter.get() < expected && System.nanoTime() - last < 2_000_000_000L) {
+			if(counter.get() != seen) {
+				seen = counter.get();
+				last = System.nanoTime();
+			}
+			Thread.sleep(1);
+		}
+	}
+}
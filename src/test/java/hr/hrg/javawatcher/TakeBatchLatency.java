@@ -0,0 +1,93 @@
+package hr.hrg.javawatcher;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Example measuring delivery latency of {@link FolderWatcher#takeBatch(long)}: time from the last write until the
+ *  batch is returned, for a single change and for a burst of changes, printed as p50/p99 next to {@code burstDelay}.
+ *  Also {@link FolderWatcher#poll(long, TimeUnit)} with a long timeout, which should return as soon as the change arrives.
+ *  The latency includes the time the OS watch service needs to report the change.
+ *  <p>
+ *  Arguments: iterations (default 100), burst size (default 20), pause between burst writes in ms (default 2), burst delays in ms (default 20 50 100)
+ *  </p>
+ * */
+public class TakeBatchLatency {
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		int burst = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		long pause = args.length > 2 ? Long.parseLong(args[2]) : 2;
+		long[] delays = {20, 50, 100};
+		if(args.length > 3) {
+			delays = new long[args.length - 3];
+			for(int i=3; i<args.length; i++) delays[i-3] = Long.parseLong(args[i]);
+		}
+
+		Path root = Files.createTempDirectory("latency");
+		FolderWatcher<Object> watcher = new FolderWatcher<>();
+		watcher.add(new FileMatchGlob<>(root, true));
+		watcher.init(true);
+		// let the watch thread register the folder
+		Thread.sleep(500);
+		try {
+			measure(watcher, root, "poll(1s)", iterations, 1, 0, 0);
+			for(long burstDelay:delays) {
+				measure(watcher, root, "single", iterations, 1, 0, burstDelay);
+				measure(watcher, root, "burst of "+burst, iterations, burst, pause, burstDelay);
+			}
+		} finally {
+			watcher.close();
+			BenchmarkUtil.delete(root);
+		}
+	}
+
+	static void measure(FolderWatcher<Object> watcher, final Path root, String name, int iterations, final int count, final long pause, long burstDelay) throws Exception {
+		List<Long> latencies = new ArrayList<>();
+		int split = 0;
+		for(int it=0; it<iterations; it++) {
+			final long[] lastWrite = new long[1];
+			final String prefix = "f"+it+"-"+burstDelay+"-"+count+"-";
+			Thread writer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for(int i=0; i<count; i++) {
+							if(i > 0) Thread.sleep(pause);
+							Files.write(root.resolve(prefix+i+".txt"), "x".getBytes());
+						}
+						lastWrite[0] = System.nanoTime();
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			});
+			writer.start();
+			// without a burst delay poll, it should return as soon as the change arrives, not after the timeout
+			Collection<FileChangeEntry<Object>> batch = burstDelay == 0 ? watcher.poll(1, TimeUnit.SECONDS) : watcher.takeBatch(burstDelay);
+			long delivered = System.nanoTime();
+			writer.join();
+			latencies.add((delivered - lastWrite[0]) / 1_000_000);
+
+			if(files(batch) < count) split++;
+			// late events of this iteration, so the next one starts with an empty queue
+			Thread.sleep(burstDelay + 50);
+			while(watcher.poll(0, TimeUnit.MILLISECONDS) != null);
+		}
+		long[] sorted = BenchmarkUtil.sorted(latencies);
+		System.out.println(name+(burstDelay == 0 ? "" : ", burstDelay "+burstDelay+"ms")+": p50 "+BenchmarkUtil.percentile(sorted, 50)+"ms, p99 "
+				+BenchmarkUtil.percentile(sorted, 99)+"ms, max "+sorted[sorted.length-1]+"ms after the last write, "
+				+split+"/"+iterations+" split into more batches");
+	}
+
+	/** number of distinct files in the batch */
+	static int files(Collection<FileChangeEntry<Object>> batch) {
+		List<Path> paths = new ArrayList<>();
+		for(FileChangeEntry<Object> e:batch) if(!paths.contains(e.getPath())) paths.add(e.getPath());
+		return paths.size();
+	}
+}
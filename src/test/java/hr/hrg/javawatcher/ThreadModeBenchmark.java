@@ -0,0 +1,157 @@
+package hr.hrg.javawatcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *  Example comparing platform and virtual threads ({@link FolderWatcher#useVirtualThreads()}) at 1k watched roots:
+ *  OS threads, resident memory and heap.
+ *  <p>
+ *  Two cases are measured. A single {@link FolderWatcher} with one matcher per root shares one watch loop, so it uses
+ *  few threads either way. Separate watch loops, one per root (like separate watchers, or one thread per matcher before
+ *  the watcher was shared), are started through {@link FolderWatcher#newThread(Runnable, String)} and block
+ *  on a queue like a watch loop blocks on its watch service (real watch services would hit the inotify instance limit).
+ *  </p><p>
+ *  Each mode runs in its own JVM, so memory is not mixed. Virtual threads need Java 21+.
+ *  Arguments: number of roots (default 1000)
+ *  </p>
+ * */
+public class ThreadModeBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int roots = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		if(args.length > 1) {
+			run(args[1].equals("virtual"), roots);
+			return;
+		}
+		System.out.println("Java "+System.getProperty("java.version")+", "+roots+" roots");
+		for(String mode:new String[] {"platform", "virtual"}) {
+			String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+			Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+					ThreadModeBenchmark.class.getName(), Integer.toString(roots), mode).inheritIO().start();
+			process.waitFor();
+		}
+	}
+
+	static void run(boolean virtual, int roots) throws Exception {
+		String mode = virtual ? "virtual " : "platform";
+		ThreadFactory factory = null;
+		if(virtual) {
+			factory = WatchUtil.virtualThreadFactory();
+			if(factory == null) {
+				System.out.println(mode+": not available in Java "+System.getProperty("java.version"));
+				return;
+			}
+		}
+
+		Path root = Files.createTempDirectory("threads-bench");
+		List<Path> dirs = new ArrayList<>();
+		for(int i=0; i<roots; i++) dirs.add(Files.createDirectory(root.resolve("r"+i)));
+		Stats base = new Stats();
+
+		// one shared watcher for all roots
+		final CountDownLatch changed = new CountDownLatch(1);
+		FolderWatcher<Object> watcher = new FolderWatcher<>();
+		watcher.setThreadFactory(factory);
+		for(Path dir:dirs) watcher.add(new FileMatchGlob<>(dir, true));
+		watcher.subscribe(new ChangeListener<Object>() {
+			@Override
+			public void onChanges(List<FileChangeEntry<Object>> changes) {
+				changed.countDown();
+			}
+		}, new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				command.run();
+			}
+		}, 0);
+		watcher.init(true);
+		Thread.sleep(500);
+		Files.write(dirs.get(roots - 1).resolve("a.txt"), "x".getBytes());
+		changed.await();
+		Stats shared = new Stats();
+		System.out.println(mode+" shared watcher:  "+shared.minus(base));
+		watcher.close();
+		watcher = null;
+
+		// one watch loop per root
+		base = new Stats();
+		FolderWatcher<Object> threads = new FolderWatcher<>();
+		threads.setThreadFactory(factory);
+		final List<BlockingQueue<Object>> queues = new ArrayList<>();
+		final AtomicInteger woken = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(roots);
+		for(int i=0; i<roots; i++) {
+			final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+			queues.add(queue);
+			threads.newThread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						queue.take();
+						woken.incrementAndGet();
+					} catch (InterruptedException e) {
+						// stop
+					}
+					done.countDown();
+				}
+			}, "watch "+dirs.get(i)).start();
+		}
+		Thread.sleep(500);
+		Stats loops = new Stats();
+		long start = System.nanoTime();
+		for(BlockingQueue<Object> queue:queues) queue.add(Boolean.TRUE);
+		done.await();
+		long wake = (System.nanoTime() - start) / 1_000_000;
+		System.out.println(mode+" "+roots+" watch loops: "+loops.minus(base)+", all "+woken.get()+" woken in "+wake+"ms");
+
+		BenchmarkUtil.delete(root);
+	}
+
+	/** process counters from /proc/self/status and the heap */
+	static class Stats {
+		final long osThreads;
+		final long rssKb;
+		final long heapMb;
+
+		Stats() throws IOException {
+			heapMb = BenchmarkUtil.usedHeap();
+			long threads = -1, rss = -1;
+			File status = new File("/proc/self/status");
+			if(status.exists()) {
+				for(String line:Files.readAllLines(status.toPath())) {
+					if(line.startsWith("Threads:")) threads = Long.parseLong(line.substring(8).trim());
+					if(line.startsWith("VmRSS:")) rss = Long.parseLong(line.substring(6).replace("kB", "").trim());
+				}
+			}
+			osThreads = threads;
+			rssKb = rss;
+		}
+
+		Stats(long osThreads, long rssKb, long heapMb) {
+			this.osThreads = osThreads;
+			this.rssKb = rssKb;
+			this.heapMb = heapMb;
+		}
+
+		Stats minus(Stats base) {
+			return new Stats(osThreads - base.osThreads, rssKb - base.rssKb, heapMb - base.heapMb);
+		}
+
+		@Override
+		public String toString() {
+			return "+"+osThreads+" OS threads, +"+(rssKb / 1024)+"MB resident, +"+heapMb+"MB heap";
+		}
+	}
+}
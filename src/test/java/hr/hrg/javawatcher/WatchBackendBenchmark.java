@@ -0,0 +1,128 @@
+package hr.hrg.javawatcher;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.FileVisitResult;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *  Example comparing {@link WatchBackend}s: creates and then rewrites files in a temp folder, and measures
+ *  how long after the last write all events arrive, and CPU time used by other threads than the writer.
+ *  <p>
+ *  Arguments: number of files (default 20000), number of folders (default 20)
+ *  </p>
+ * */
+public class WatchBackendBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int files = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int folders = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+		for(WatchBackend backend:WatchBackend.values()) {
+			// warm up, then measure
+			run(backend, files / 10, folders, false);
+			run(backend, files, folders, true);
+		}
+	}
+
+	static void run(WatchBackend backend, int files, int folders, boolean print) throws Exception {
+		Path root = Files.createTempDirectory("watch-bench");
+		for(int i=0; i<folders; i++) Files.createDirectory(root.resolve("d"+i));
+
+		final AtomicInteger created = new AtomicInteger();
+		final AtomicInteger modified = new AtomicInteger();
+		FolderWatcher<Object> watcher = new FolderWatcher<>();
+		watcher.setWatchBackend(backend);
+		watcher.add(new FileMatchGlob<>(root, true).includes("**/*.txt"));
+		watcher.subscribe(new ChangeListener<Object>() {
+			@Override
+			public void onChanges(List<FileChangeEntry<Object>> changes) {
+				for(FileChangeEntry<Object> change:changes) {
+					if(change.getType() == FileChangeType.CREATE) created.incrementAndGet();
+					if(change.getType() == FileChangeType.MODIFY) modified.incrementAndGet();
+				}
+			}
+		}, new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				command.run();
+			}
+		}, 0);
+		watcher.init(true);
+		// let the watch thread register the folders
+		Thread.sleep(500);
+
+		try {
+			phase(backend+" create", root, files, folders, "created", created, print);
+			// events for closing the new files count as modifications with some backends
+			Thread.sleep(500);
+			modified.set(0);
+			phase(backend+" modify", root, files, folders, "modified", modified, print);
+		} finally {
+			watcher.close();
+			delete(root);
+		}
+	}
+
+	static void phase(String name, Path root, int files, int folders, String text, AtomicInteger counter, boolean print) throws InterruptedException, IOException {
+		byte[] content = text.getBytes();
+		long cpu = otherThreadsCpu();
+		for(int i=0; i<files; i++) Files.write(root.resolve("d"+(i % folders)).resolve("f"+i+".txt"), content);
+		long lag = waitFor(counter, files, System.nanoTime());
+		cpu = otherThreadsCpu() - cpu;
+		if(print) System.out.println(name+": "+counter.get()+"/"+files+" events, last "+lag+"ms after writes, "+(cpu / 1_000_000)+"ms CPU");
+	}
+
+	/** CPU time (ns) of live threads except the current one */
+	static long otherThreadsCpu() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		long current = Thread.currentThread().getId();
+		long sum = 0;
+		for(long id:bean.getAllThreadIds()) {
+			if(id == current) continue;
+			long time = bean.getThreadCpuTime(id);
+			if(time > 0) sum += time;
+		}
+		return sum;
+	}
+
+	/** @return ms from start until all events arrived, or until the last event if no more arrive for 2 seconds */
+	static long waitFor(AtomicInteger counter, int expected, long start) throws InterruptedException {
+		int last = -1;
+		long lastChange = System.nanoTime();
+		while(counter.get() < expected) {
+			int now = counter.get();
+			if(now != last) {
+				last = now;
+				lastChange = System.nanoTime();
+			}else if(System.nanoTime() - lastChange > 2_000_000_000L) {
+				return (lastChange - start) / 1_000_000;
+			}
+			Thread.sleep(1);
+		}
+		return (System.nanoTime() - start) / 1_000_000;
+	}
+
+	static void delete(Path root) throws IOException {
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}